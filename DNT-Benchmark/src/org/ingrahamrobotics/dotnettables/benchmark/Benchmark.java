@@ -0,0 +1,765 @@
+package org.ingrahamrobotics.dotnettables.benchmark;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+import edu.wpi.first.wpilibj.networktables.NetworkTableProvider;
+import edu.wpi.first.wpilibj.networktables2.NetworkTableEntry;
+import edu.wpi.first.wpilibj.networktables2.client.NetworkTableClient;
+import edu.wpi.first.wpilibj.networktables2.server.NetworkTableServer;
+import edu.wpi.first.wpilibj.networktables2.stream.IOStream;
+import edu.wpi.first.wpilibj.networktables2.stream.IOStreamProvider;
+import edu.wpi.first.wpilibj.networktables2.stream.SocketStreams;
+import edu.wpi.first.wpilibj.networktables2.thread.DefaultThreadManager;
+import edu.wpi.first.wpilibj.networktables2.type.ComplexData;
+import edu.wpi.first.wpilibj.networktables2.type.NetworkTableEntryTypeManager;
+import edu.wpi.first.wpilibj.networktables2.type.NumberArray;
+import edu.wpi.first.wpilibj.networktables2.type.StringArray;
+import edu.wpi.first.wpilibj.tables.ITable;
+import edu.wpi.first.wpilibj.tables.ITableListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Vector;
+import org.ingrahamrobotics.dotnettables.DotNetTable;
+import org.ingrahamrobotics.dotnettables.DotNetTables;
+
+/**
+ * Micro-benchmarks for the DotNetTables encode and decode paths and the
+ * NetworkTables write path, run on a laptop against a DotNetTables server
+ * started in this process.
+ *
+ * Each benchmark runs for a warm-up period and then a measured period, and
+ * reports operations per second and bytes allocated per operation, as
+ * counted by the JVM for the benchmark threads. Each receive benchmark is
+ * followed by the bytes DotNetTables itself allocates per received message:
+ * the receive benchmark's allocation less that of the same puts into a
+ * NetworkTables node with no listeners or clients. This should be 0 once a
+ * subscribed table's buffers are in use, except in compact mode, which
+ * decodes each message into new arrays and strings.
+ *
+ * Benchmarks are run for every combination of table size and key length,
+ * along with a one-off timing of restoring a table of that size from
+ * persistent storage, and a check that a table received from a client is
+ * recorded and restored by replay.
+ *
+ * Build with "ant jar", which compiles this against DNT-RobotServer/src and
+ * DNT-LaptopClient's DotNetTables-combined.jar, and run with no other
+ * NetworkTables server on the machine:
+ *
+ * java Benchmark [sizes] [key lengths] [threads] [seconds]
+ *
+ * for example "ant run -Dapplication.args='10,100,1000 8,32 4 2'". Run as
+ *
+ * java Benchmark lanes [seconds]
+ *
+ * it instead reports the p50 and p99 latency of a small table sent every 5ms
+ * to a loopback client, alone at high priority, alongside a 3000 key table
+ * sent every 20ms with both at normal priority, and with the large table in
+ * the bulk lane. See README.md.
+ */
+public class Benchmark {
+
+    private static final String[] MODES = {"legacy", "typed", "compact"};
+    /**
+     * Lane latency settings: the setpoint and large table send periods in
+     * milliseconds, and the size of the large table
+     */
+    private static final long SETPOINT_PERIOD = 5;
+    private static final long BULK_PERIOD = 20;
+    private static final int BULK_KEYS = 3000;
+    private static int threads = 4;
+    private static long millis = 2000;
+    private static ITable bench;
+    private static ITable baseline;
+    private static NetworkTableClient client;
+    private static volatile long delivered = 0;
+    private static volatile boolean running = false;
+    private static volatile boolean measuring = false;
+
+    /**
+     * One benchmark operation
+     */
+    private interface Op {
+
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("lanes")) {
+            if (args.length > 1) {
+                millis = (long) (Double.parseDouble(args[1]) * 1000);
+            }
+            DotNetTables.startServer();
+            startLoopbackClient();
+            lanes();
+            System.exit(0);
+        }
+
+        int[] sizes = parse((args.length > 0) ? args[0] : "10,100,1000");
+        int[] lengths = parse((args.length > 1) ? args[1] : "8,32");
+        if (args.length > 2) {
+            threads = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            millis = (long) (Double.parseDouble(args[3]) * 1000);
+        }
+
+        DotNetTables.startServer();
+        bench = NetworkTable.getTable("Bench");
+        startLoopbackClient();
+        NetworkTableServer empty = new NetworkTableServer(new NoStreams(), new NetworkTableEntryTypeManager(), new DefaultThreadManager());
+        baseline = new NetworkTableProvider(empty).getTable(DotNetTables.TABLE_NAME);
+
+        System.out.println("benchmark                      size keylen       ops/s     bytes/op");
+        for (int s = 0; s < sizes.length; s++) {
+            for (int l = 0; l < lengths.length; l++) {
+                run(sizes[s], lengths[l]);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(final int size, final int length) throws Exception {
+        final String[] keys = keys(size, length);
+        String suffix = "-" + size + "-" + length;
+
+        // setValue()/getDouble() round trips on a published table
+        final DotNetTable local = DotNetTables.publish("local" + suffix);
+        measure("setValue/getDouble", size, length, new Op() {
+            private int round = 0;
+
+            public void run() {
+                double sum = 0;
+                this.round++;
+                for (int i = 0; i < keys.length; i++) {
+                    local.setValue(keys[i], i + this.round);
+                    sum += local.getDouble(keys[i]);
+                }
+                if (sum < 0) {
+                    throw new IllegalStateException();
+                }
+            }
+        });
+
+        for (int m = 0; m < MODES.length; m++) {
+            // Encode: pack and publish the table after changing one key
+            final DotNetTable out = DotNetTables.publish("out-" + MODES[m] + suffix);
+            out.setTyped(m == 1);
+            out.setCompact(m == 2);
+            fill(out, keys);
+            measure("send " + MODES[m], size, length, new Op() {
+                private int round = 0;
+
+                public void run() {
+                    out.setValue(keys[0], ++this.round);
+                    out.send();
+                }
+            });
+
+            // Decode: replay the entries of the last send into a subscribed
+            // table, through the NetworkTables listener
+            final Vector entries = capture(out.name());
+            final String in = "in-" + MODES[m] + suffix;
+            final DotNetTable subscribed = DotNetTables.subscribe(in);
+            final int[] changes = new int[1];
+            subscribed.onChange(new DotNetTable.DotNetTableEvents() {
+                public void changed(DotNetTable table) {
+                    changes[0]++;
+                }
+
+                public void stale(DotNetTable table) {
+                }
+            });
+            final ITable dotnet = NetworkTable.getTable(DotNetTables.TABLE_NAME);
+            replay(dotnet, entries, in, true);
+            double received = measure("receive " + MODES[m], size, length, new Op() {
+                public void run() {
+                    replay(dotnet, entries, in, false);
+                }
+            });
+            if (changes[0] == 0 || subscribed.getValue(keys[keys.length - 1]) == null) {
+                System.out.println("  (receive " + MODES[m] + " did not decode)");
+            }
+
+            // The same puts into a node with no listeners or clients allocate
+            // only what the NetworkTables entry store does, leaving
+            // DotNetTables' share
+            replay(baseline, entries, in, true);
+            double put = time(new Op() {
+                public void run() {
+                    replay(baseline, entries, in, false);
+                }
+            })[1];
+            if (received >= 0 && put >= 0) {
+                System.out.println("  DotNetTables receive path " + (long) Math.max(received - put, 0) + " bytes/message of " + entries.size() + " entries");
+            }
+        }
+
+        // ArrayEntryType serialization of the largest entry, which is limited
+        // to 255 values
+        final int pairs = Math.min(size, DotNetTable.SEGMENT_PAIRS);
+        final Object[] array = new Object[pairs * 2];
+        for (int i = 0; i < pairs; i++) {
+            array[i] = keys[i];
+            array[pairs + i] = Double.toString(i * 0.25);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(bytes);
+        measure("ArrayEntryType send/read", size, length, new Op() {
+            public void run() throws IOException {
+                bytes.reset();
+                StringArray.TYPE.sendValue(array, data);
+                data.flush();
+                DataInputStream read = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+                if (((Object[]) StringArray.TYPE.readValue(read)).length != array.length) {
+                    throw new IllegalStateException();
+                }
+            }
+        });
+
+        contend(keys);
+        restore(keys, suffix);
+        record(keys, suffix);
+    }
+
+    /**
+     * Measure how long a small setpoint table sent every SETPOINT_PERIOD takes
+     * to reach the loopback client: alone at high priority, alongside a large
+     * table sent every BULK_PERIOD with both at normal priority, and with the
+     * large table in the bulk lane.
+     */
+    private static void lanes() throws Exception {
+        System.out.println("setpoint latency, ms               p50        p99    samples");
+        lanes("high, no load", DotNetTable.PRIORITY_HIGH, 0);
+        lanes("normal, normal load", DotNetTable.PRIORITY_NORMAL, DotNetTable.PRIORITY_NORMAL);
+        lanes("high, bulk load", DotNetTable.PRIORITY_HIGH, DotNetTable.PRIORITY_BULK);
+    }
+
+    /**
+     * @param load The priority of the large table, or 0 to send none
+     */
+    private static void lanes(String name, int priority, final int load) throws Exception {
+        String suffix = "-" + priority + "-" + load;
+        final DotNetTable setpoint = DotNetTables.publish("setpoint" + suffix, priority);
+        final DotNetTable bulk = (load != 0) ? DotNetTables.publish("bulk" + suffix, load) : null;
+        if (bulk != null) {
+            fill(bulk, keys(BULK_KEYS, 8));
+        }
+        final Latencies latencies = new Latencies(NetworkTable.PATH_SEPARATOR + DotNetTables.TABLE_NAME + NetworkTable.PATH_SEPARATOR + setpoint.name());
+        client.addTableListener(latencies, false);
+
+        running = true;
+        Thread loader = new Thread(new Runnable() {
+            public void run() {
+                for (int round = 0; running; round++) {
+                    if (bulk != null) {
+                        bulk.setValue("round", round);
+                        bulk.send();
+                    }
+                    sleep(BULK_PERIOD);
+                }
+            }
+        }, "Bulk Load");
+        loader.start();
+        long deadline = System.currentTimeMillis() + millis / 2;
+        while (System.currentTimeMillis() < deadline) {
+            send(setpoint);
+        }
+        latencies.start();
+        deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            send(setpoint);
+        }
+        sleep(100);
+        running = false;
+        loader.join();
+        client.removeTableListener(latencies);
+
+        long[] samples = latencies.samples();
+        StringBuffer line = new StringBuffer(name);
+        pad(line, 29);
+        append(line, percentile(samples, 50), 11);
+        append(line, percentile(samples, 99), 11);
+        append(line, Integer.toString(samples.length), 11);
+        System.out.println(line);
+    }
+
+    private static void send(DotNetTable setpoint) {
+        setpoint.setValue("sent", Long.toString(System.nanoTime()));
+        setpoint.send();
+        sleep(SETPOINT_PERIOD);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * @return The percentile of the samples, in milliseconds
+     */
+    private static String percentile(long[] samples, int percent) {
+        if (samples.length == 0) {
+            return "n/a";
+        }
+        long[] sorted = new long[samples.length];
+        System.arraycopy(samples, 0, sorted, 0, samples.length);
+        Arrays.sort(sorted);
+        long nanos = sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+        return Double.toString((nanos / 10000) / 100.0);
+    }
+
+    /**
+     * Records the latency of each setpoint send the loopback client receives,
+     * from the send time the setpoint carries
+     */
+    private static class Latencies implements ITableListener {
+
+        private final String entry;
+        private final long[] samples = new long[100000];
+        private int count = 0;
+        private boolean started = false;
+
+        Latencies(String entry) {
+            this.entry = entry;
+        }
+
+        public void valueChanged(ITable source, String key, Object value, boolean isNew) {
+            long now = System.nanoTime();
+            if (!key.equals(this.entry)) {
+                return;
+            }
+            // An unsegmented send holds its keys, then their values
+            Object[] array = (Object[]) value;
+            int size = array.length / 2;
+            for (int i = 0; i < size; i++) {
+                if ("sent".equals(array[i])) {
+                    this.add(now - Long.parseLong((String) array[size + i]));
+                    return;
+                }
+            }
+        }
+
+        private synchronized void add(long latency) {
+            if (this.started && this.count < this.samples.length) {
+                this.samples[this.count++] = latency;
+            }
+        }
+
+        synchronized void start() {
+            this.started = true;
+        }
+
+        synchronized long[] samples() {
+            long[] copy = new long[this.count];
+            System.arraycopy(this.samples, 0, copy, 0, this.count);
+            return copy;
+        }
+    }
+
+    /**
+     * Record a typed table as the server receives it from the loopback
+     * client, overwrite it, and check that replaying the recording restores
+     * the recorded values
+     */
+    private static void record(String[] keys, String suffix) throws Exception {
+        DotNetTable source = DotNetTables.publish("source" + suffix);
+        source.setTyped(true);
+        fill(source, keys);
+        source.setValue(keys[0], 1);
+        source.send();
+        Vector first = capture(source.name());
+        source.setValue(keys[0], 2);
+        source.send();
+        Vector second = capture(source.name());
+
+        String name = "recorded" + suffix;
+        DotNetTable received = DotNetTables.subscribe(name);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DotNetTables.startRecording(log);
+        put(first, name);
+        boolean ok = await(received, keys[0], "1");
+        DotNetTables.stopRecording();
+        put(second, name);
+        ok = ok && await(received, keys[0], "2");
+
+        long begin = System.nanoTime();
+        long replayed = DotNetTables.replay(new ByteArrayInputStream(log.toByteArray()), 0);
+        long elapsed = System.nanoTime() - begin;
+        ok = ok && await(received, keys[0], "1") && received.getValue(keys[keys.length - 1]) != null;
+        if (!ok) {
+            System.out.println("  (replay did not restore the received table)");
+        }
+        System.out.println("  recorded " + first.size() + " entries from the client in " + log.size() + " bytes, replayed " + replayed + " in " + (elapsed / 100000) / 10.0 + " ms");
+    }
+
+    /**
+     * Put captured entries under another table's name from the loopback
+     * client, so the server receives them over the network. Waits for the
+     * server to assign each new entry an id, as the client drops updates to
+     * entries without one.
+     */
+    private static void put(Vector entries, String to) throws InterruptedException {
+        String path = NetworkTable.PATH_SEPARATOR + DotNetTables.TABLE_NAME + NetworkTable.PATH_SEPARATOR + to;
+        for (int i = 0; i < entries.size(); i++) {
+            Object[] entry = (Object[]) entries.elementAt(i);
+            client.putComplex(path + entry[0], (ComplexData) entry[1]);
+        }
+        long deadline = System.currentTimeMillis() + 1000;
+        for (int i = 0; i < entries.size(); i++) {
+            Object[] entry = (Object[]) entries.elementAt(i);
+            NetworkTableEntry assigned = client.getEntryStore().getEntry(path + entry[0]);
+            while (assigned.getId() == NetworkTableEntry.UNKNOWN_ID && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    /**
+     * Wait up to a second for a key of a subscribed table to take a value
+     *
+     * @return True if the key took the value
+     */
+    private static boolean await(DotNetTable table, String key, String value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!value.equals(table.getValue(key))) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * Time a warm restart: the time for DotNetTables.persist() to load a
+     * saved table, fill a new published table with it and send it
+     */
+    private static void restore(String[] keys, String suffix) throws Exception {
+        MemoryStorage saved = new MemoryStorage(null);
+        DotNetTables.persist("saved" + suffix, true, saved);
+        fill(DotNetTables.publish("saved" + suffix), keys);
+
+        // Give the store thread time to write the table
+        Thread.sleep(500);
+        byte[] log = saved.bytes.toByteArray();
+        MemoryStorage copy = new MemoryStorage(log);
+        long begin = System.nanoTime();
+        DotNetTables.persist("restored" + suffix, true, copy);
+        long elapsed = System.nanoTime() - begin;
+        DotNetTable restored = DotNetTables.publish("restored" + suffix);
+        if (restored.getValue(keys[keys.length - 1]) == null) {
+            System.out.println("  (restore did not load)");
+        }
+        System.out.println("  restored " + keys.length + " keys from " + log.length + " bytes in " + (elapsed / 100000) / 10.0 + " ms");
+    }
+
+    /**
+     * Persistent table storage held in memory
+     */
+    private static class MemoryStorage implements DotNetTables.Storage {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final byte[] initial;
+
+        MemoryStorage(byte[] initial) {
+            this.initial = initial;
+        }
+
+        public InputStream read() {
+            return (this.initial != null) ? new ByteArrayInputStream(this.initial) : null;
+        }
+
+        public OutputStream append() {
+            return this.bytes;
+        }
+
+        public OutputStream replace() {
+            final ByteArrayOutputStream replacement = new ByteArrayOutputStream();
+            return new FilterOutputStream(replacement) {
+                public void close() {
+                    bytes = replacement;
+                }
+            };
+        }
+    }
+
+    /**
+     * putOutgoing from several threads at once, each to its own keys, with
+     * the write manager sending to a loopback client
+     */
+    private static void contend(final String[] keys) throws Exception {
+        final long[] ops = new long[threads];
+        final long[] ids = new long[threads];
+        running = true;
+        measuring = false;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int n = t;
+            final String[] names = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                names[i] = n + "/" + keys[i];
+            }
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    double v = 0;
+                    long count = 0;
+                    while (running) {
+                        for (int i = 0; i < names.length; i++) {
+                            bench.putNumber(names[i], v++);
+                        }
+                        if (measuring) {
+                            count++;
+                        }
+                    }
+                    ops[n] = count;
+                }
+            });
+            workers[t].start();
+            ids[t] = workers[t].getId();
+        }
+
+        // Warm up, then measure while every thread is still running
+        Thread.sleep(millis / 2);
+        long[] before = new long[threads];
+        for (int t = 0; t < threads; t++) {
+            before[t] = allocated(ids[t]);
+        }
+        long coalesced = DotNetTables.getCoalescedWrites();
+        long received = delivered;
+        long begin = System.currentTimeMillis();
+        measuring = true;
+        Thread.sleep(millis);
+        long bytes = 0;
+        for (int t = 0; t < threads; t++) {
+            bytes += allocated(ids[t]) - before[t];
+        }
+        running = false;
+        long elapsed = System.currentTimeMillis() - begin;
+        received = delivered - received;
+        coalesced = DotNetTables.getCoalescedWrites() - coalesced;
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += ops[t];
+        }
+        long puts = total * keys.length;
+        report("putOutgoing x" + threads + " threads", keys.length, keys[0].length(), puts * 1000.0 / elapsed, (puts > 0 && bytes >= 0) ? bytes / (double) puts : -1);
+        System.out.println("  written to client " + (received * 1000 / elapsed) + "/s, coalesced " + (coalesced * 1000 / elapsed) + "/s");
+    }
+
+    /**
+     * Run an operation for the warm-up period, then report its rate over the
+     * measured period
+     *
+     * @return The bytes allocated per operation, or -1 if the JVM does not
+     * count them
+     */
+    private static double measure(String name, int size, int length, Op op) throws Exception {
+        double[] result = time(op);
+        report(name, size, length, result[0], result[1]);
+        return result[1];
+    }
+
+    /**
+     * Run an operation for the warm-up and measured periods
+     *
+     * @return The operations per second and the bytes allocated per
+     * operation, or -1 if the JVM does not count them
+     */
+    private static double[] time(Op op) throws Exception {
+        long deadline = System.currentTimeMillis() + millis / 2;
+        while (System.currentTimeMillis() < deadline) {
+            op.run();
+        }
+        long id = Thread.currentThread().getId();
+        long count = 0;
+        long bytes = allocated(id);
+        long begin = System.nanoTime();
+        deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            op.run();
+            count++;
+        }
+        long elapsed = System.nanoTime() - begin;
+        long after = allocated(id);
+        return new double[]{count * 1e9 / elapsed, (bytes < 0 || after < 0) ? -1 : (after - bytes) / (double) count};
+    }
+
+    private static void report(String name, int size, int length, double rate, double bytes) {
+        StringBuffer line = new StringBuffer(name);
+        pad(line, 29);
+        line.append(' ');
+        append(line, Integer.toString(size), 6);
+        append(line, Integer.toString(length), 7);
+        append(line, Long.toString((long) rate), 12);
+        append(line, (bytes < 0) ? "n/a" : Long.toString((long) bytes), 13);
+        System.out.println(line);
+    }
+
+    private static void append(StringBuffer line, String value, int width) {
+        for (int i = value.length(); i < width; i++) {
+            line.append(' ');
+        }
+        line.append(value);
+    }
+
+    private static void pad(StringBuffer line, int width) {
+        while (line.length() < width) {
+            line.append(' ');
+        }
+    }
+
+    /**
+     * @return The bytes allocated by the thread so far, or a negative number
+     * if the JVM does not count them
+     */
+    private static long allocated(long thread) {
+        try {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(thread);
+        } catch (RuntimeException ex) {
+            return Long.MIN_VALUE;
+        } catch (LinkageError ex) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * @return Distinct keys of the specified length
+     */
+    private static String[] keys(int size, int length) {
+        String[] keys = new String[size];
+        for (int i = 0; i < size; i++) {
+            StringBuffer key = new StringBuffer("k" + i);
+            while (key.length() < length) {
+                key.append('_');
+            }
+            keys[i] = key.toString();
+        }
+        return keys;
+    }
+
+    /**
+     * Store a mix of value types, as in a typical robot table
+     */
+    private static void fill(DotNetTable table, String[] keys) {
+        for (int i = 0; i < keys.length; i++) {
+            switch (i % 4) {
+                case 0:
+                    table.setValue(keys[i], "value" + i);
+                    break;
+                case 1:
+                    table.setValue(keys[i], i);
+                    break;
+                case 2:
+                    table.setValue(keys[i], i * 0.25);
+                    break;
+                default:
+                    table.setValue(keys[i], i % 8 == 3);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return Each entry published for the table, as {suffix, value}, in the
+     * order the publisher puts them
+     */
+    private static Vector capture(String name) {
+        ITable dotnet = NetworkTable.getTable(DotNetTables.TABLE_NAME);
+        Vector entries = new Vector();
+        for (int i = 0; capture(dotnet, entries, name, DotNetTable.KEYS_SUFFIX + i, false); i++) {
+        }
+        for (int i = 0; capture(dotnet, entries, name, DotNetTable.NUMBER_SUFFIX + i, true); i++) {
+        }
+        for (int i = 1; capture(dotnet, entries, name, DotNetTable.SEGMENT_SUFFIX + i, false); i++) {
+        }
+
+        // The first segment is put last, as the publisher does
+        capture(dotnet, entries, name, "", false);
+        return entries;
+    }
+
+    private static boolean capture(ITable dotnet, Vector entries, String name, String suffix, boolean numeric) {
+        if (!dotnet.containsKey(name + suffix)) {
+            return false;
+        }
+        Object value = numeric ? (Object) new NumberArray() : new StringArray();
+        dotnet.retrieveValue(name + suffix, value);
+        entries.addElement(new Object[]{suffix, value});
+        return true;
+    }
+
+    /**
+     * Put captured entries under another table's name. Key dictionary
+     * entries are only put once, as a publisher would.
+     */
+    private static void replay(ITable dotnet, Vector entries, String to, boolean keys) {
+        for (int i = 0; i < entries.size(); i++) {
+            Object[] entry = (Object[]) entries.elementAt(i);
+            String suffix = (String) entry[0];
+            if (suffix.startsWith(DotNetTable.KEYS_SUFFIX) == keys) {
+                dotnet.putValue(to + suffix, entry[1]);
+            }
+        }
+    }
+
+    /**
+     * Accepts no connections, for a NetworkTables server that only stores
+     */
+    private static class NoStreams implements IOStreamProvider {
+
+        public synchronized IOStream accept() {
+            while (true) {
+                try {
+                    this.wait();
+                } catch (InterruptedException ex) {
+                }
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Connect a second NetworkTables node to our server, so that the write
+     * manager has a client to send to
+     */
+    private static void startLoopbackClient() throws IOException, InterruptedException {
+        client = new NetworkTableClient(SocketStreams.newStreamFactory("127.0.0.1", NetworkTable.DEFAULT_PORT), new NetworkTableEntryTypeManager(), new DefaultThreadManager());
+        client.addTableListener(new ITableListener() {
+            public void valueChanged(ITable source, String key, Object value, boolean isNew) {
+                delivered++;
+            }
+        }, false);
+        client.reconnect();
+        Thread.sleep(500);
+    }
+
+    private static int[] parse(String list) {
+        Vector values = new Vector();
+        int start = 0;
+        while (start <= list.length()) {
+            int end = list.indexOf(',', start);
+            if (end < 0) {
+                end = list.length();
+            }
+            values.addElement(Integer.valueOf(list.substring(start, end).trim()));
+            start = end + 1;
+        }
+        int[] out = new int[values.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = ((Integer) values.elementAt(i)).intValue();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,301 @@
+package org.ingrahamrobotics.dotnettables.benchmark;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+import edu.wpi.first.wpilibj.networktables2.NetworkTableEntry;
+import edu.wpi.first.wpilibj.networktables2.server.NetworkTableServer;
+import edu.wpi.first.wpilibj.networktables2.stream.SocketStreams;
+import edu.wpi.first.wpilibj.networktables2.thread.DefaultThreadManager;
+import edu.wpi.first.wpilibj.networktables2.type.NetworkTableEntryTypeManager;
+import edu.wpi.first.wpilibj.tables.ITable;
+import edu.wpi.first.wpilibj.tables.ITableListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+import org.ingrahamrobotics.dotnettables.DotNetTable;
+import org.ingrahamrobotics.dotnettables.DotNetTables;
+
+/**
+ * Checks that subscribed tables skip the entries a NetworkTables server
+ * re-sends each time a client reconnects.
+ *
+ * A NetworkTables server runs in this process on the port after the default
+ * one, behind a proxy on the default port that DotNetTables connects to as a
+ * client. The client publishes a small and a large table, which the server
+ * copies to the names the client subscribes to, so the subscribed tables
+ * come from the server as they would from a robot. The proxy then drops the
+ * client's connection a number of times, and each time the client
+ * reconnects the server re-sends every entry. Nothing has changed, so the
+ * subscribed tables should fire no changed() callbacks and every re-sent
+ * entry of theirs should be skipped. A final real change to the small table
+ * should fire one callback on it and none on the large table.
+ *
+ * Run with no other NetworkTables server on the machine:
+ *
+ * java Reconnect [drops]
+ *
+ * It exits with status 1 if any count differs from the expected one.
+ */
+public class Reconnect {
+
+    private static final int PORT = NetworkTable.DEFAULT_PORT + 1;
+    private static final String PATH = NetworkTable.PATH_SEPARATOR + DotNetTables.TABLE_NAME + NetworkTable.PATH_SEPARATOR;
+    private static final String SOURCE = "source-";
+    private static final String SUBSCRIBED = "subscribed-";
+    private static final int[] SIZES = {10, 400};
+
+    public static void main(String[] args) {
+        boolean passed = false;
+        try {
+            passed = check((args.length > 0) ? Integer.parseInt(args[0]) : 5);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return True if every subscribed table fired the expected number of
+     * changed() callbacks
+     */
+    private static boolean check(int drops) throws Exception {
+        NetworkTableServer server = new NetworkTableServer(SocketStreams.newStreamProvider(PORT), new NetworkTableEntryTypeManager(), new DefaultThreadManager());
+        server.addTableListener(new Mirror(server), true);
+        Proxy proxy = new Proxy(NetworkTable.DEFAULT_PORT, PORT);
+        Thread accept = new Thread(proxy, "Proxy Accept Thread");
+        accept.setDaemon(true);
+        accept.start();
+
+        DotNetTables.startClient("127.0.0.1");
+        if (!proxy.await(1, 5000)) {
+            throw new IllegalStateException("The client did not connect");
+        }
+        // Let the first connection settle before publishing
+        Thread.sleep(2500);
+
+        DotNetTable[] sources = new DotNetTable[SIZES.length];
+        DotNetTable[] subscribed = new DotNetTable[SIZES.length];
+        final int[] changes = new int[SIZES.length];
+        for (int t = 0; t < SIZES.length; t++) {
+            final int table = t;
+            subscribed[t] = DotNetTables.subscribe(SUBSCRIBED + SIZES[t]);
+            subscribed[t].onChange(new DotNetTable.DotNetTableEvents() {
+                public void changed(DotNetTable dnt) {
+                    changes[table]++;
+                }
+
+                public void stale(DotNetTable dnt) {
+                }
+            });
+
+            // publish() sends the empty table. Wait for the server to assign
+            // the new entry an id, as the client overwrites the entry with the
+            // assigned value when the id arrives.
+            sources[t] = DotNetTables.publish(SOURCE + SIZES[t]);
+            Thread.sleep(500);
+            for (int i = 0; i < SIZES[t]; i++) {
+                sources[t].setValue("k" + i, "v" + i);
+            }
+            sources[t].send();
+        }
+        for (int t = 0; t < SIZES.length; t++) {
+            if (!await(subscribed[t], "k" + (SIZES[t] - 1), "v" + (SIZES[t] - 1))) {
+                throw new IllegalStateException(subscribed[t].name() + " was not received");
+            }
+        }
+
+        // Reconnect without changing anything
+        Thread.sleep(500);
+        clear(changes);
+        long skipped = DotNetTables.getSkippedResends();
+        int connections = proxy.accepted();
+        for (int d = 0; d < drops; d++) {
+            proxy.drop();
+            if (!proxy.await(connections + d + 1, 5000)) {
+                throw new IllegalStateException("The client did not reconnect");
+            }
+            // Give the server's hello time to arrive
+            Thread.sleep(1000);
+        }
+        skipped = DotNetTables.getSkippedResends() - skipped;
+        System.out.println("after " + drops + " reconnects, " + skipped + " re-sent entries skipped");
+        boolean passed = report(subscribed, changes, 0);
+
+        // One real change
+        clear(changes);
+        sources[0].setValue("k0", "changed");
+        sources[0].send();
+        boolean received = await(subscribed[0], "k0", "changed");
+        Thread.sleep(500);
+        System.out.println("after changing " + sources[0].name() + (received ? "" : " (not received)"));
+        passed &= report(subscribed, changes, 1);
+        return passed && received;
+    }
+
+    /**
+     * Print each table's changed() callbacks
+     *
+     * @param expected The callbacks expected of the first table; the others
+     * should have none
+     * @return True if every count was as expected
+     */
+    private static boolean report(DotNetTable[] tables, int[] changes, int expected) {
+        boolean passed = true;
+        for (int t = 0; t < tables.length; t++) {
+            int want = (t == 0) ? expected : 0;
+            System.out.println("  " + tables[t].name() + ": " + changes[t] + " changed() callbacks" + ((changes[t] == want) ? "" : " (expected " + want + ")"));
+            passed &= (changes[t] == want);
+        }
+        return passed;
+    }
+
+    private static void clear(int[] changes) {
+        for (int t = 0; t < changes.length; t++) {
+            changes[t] = 0;
+        }
+    }
+
+    /**
+     * Wait up to five seconds for a key of a subscribed table to take a value
+     *
+     * @return True if the key took the value
+     */
+    private static boolean await(DotNetTable table, String key, String value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!value.equals(table.getValue(key))) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * Copies each entry the client publishes under the source name to the
+     * subscribed name, on the server
+     */
+    private static class Mirror implements ITableListener {
+
+        private final NetworkTableServer server;
+
+        Mirror(NetworkTableServer server) {
+            this.server = server;
+        }
+
+        public void valueChanged(ITable itable, String key, Object val, boolean isNew) {
+            if (!key.startsWith(PATH + SOURCE)) {
+                return;
+            }
+            NetworkTableEntry entry = this.server.getEntryStore().getEntry(key);
+
+            // Arrays are held as Object[] and updated in place
+            Object[] array = (Object[]) val;
+            Object[] copy = new Object[array.length];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            this.server.getEntryStore().putOutgoing(PATH + SUBSCRIBED + key.substring(PATH.length() + SOURCE.length()), entry.getType(), copy);
+        }
+    }
+
+    /**
+     * Forwards each connection on one local port to another, and drops them
+     * on request
+     */
+    private static class Proxy implements Runnable {
+
+        private final ServerSocket listener;
+        private final int to;
+        private final Vector sockets = new Vector();
+        private int accepted = 0;
+
+        Proxy(int from, int to) throws IOException {
+            this.listener = new ServerSocket(from, 50, InetAddress.getByName("127.0.0.1"));
+            this.to = to;
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Socket in = this.listener.accept();
+                    Socket out = new Socket("127.0.0.1", this.to);
+                    synchronized (this) {
+                        this.sockets.addElement(in);
+                        this.sockets.addElement(out);
+                        this.accepted++;
+                        this.notifyAll();
+                    }
+                    pump(in, out);
+                    pump(out, in);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return The number of connections accepted so far
+         */
+        synchronized int accepted() {
+            return this.accepted;
+        }
+
+        /**
+         * Wait for a number of connections to have been accepted in all
+         *
+         * @return True if they were accepted in time
+         */
+        synchronized boolean await(int count, long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            while (this.accepted < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                this.wait(left);
+            }
+            return true;
+        }
+
+        /**
+         * Close every open connection
+         */
+        synchronized void drop() {
+            for (int i = 0; i < this.sockets.size(); i++) {
+                close((Socket) this.sockets.elementAt(i));
+            }
+            this.sockets.removeAllElements();
+        }
+
+        private static void pump(final Socket from, final Socket to) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[4096];
+                    try {
+                        InputStream in = from.getInputStream();
+                        OutputStream out = to.getOutputStream();
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            out.write(buffer, 0, n);
+                        }
+                    } catch (IOException ex) {
+                    }
+                    close(from);
+                    close(to);
+                }
+            }, "Proxy Thread");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void close(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package org.ingrahamrobotics.dotnettables;
+
+import edu.wpi.first.wpilibj.networktables2.stream.IOStream;
+import edu.wpi.first.wpilibj.networktables2.stream.IOStreamProvider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Vector;
+
+/**
+ * Wraps a server's stream provider so that writing to one client never waits
+ * on that client's network connection. The NetworkTables server writes each
+ * update to every client in turn, so a single slow client would otherwise
+ * stall delivery to all of them.
+ *
+ * Bytes written to a client are copied into a memory buffer, and flushing
+ * queues the client for one of WRITERS sender threads shared by every
+ * client of the server. Each queued client is sent everything buffered for
+ * it in turn. A client that falls more than BACKLOG_LIMIT bytes behind is
+ * disconnected; it will resynchronize when it reconnects. Disconnecting it
+ * also frees a sender thread that was stuck sending to it, so a stalled
+ * client holds up at most one sender, and only until it is disconnected.
+ *
+ * This also keeps new clients from holding up the server. The server writes
+ * its entire entry set to a new client while holding the entry store lock;
+ * here that only encodes the entries into memory, and a sender thread
+ * streams them after the lock is released. Updates made afterwards are
+ * queued behind the initial sync, so they reach the client in order. The
+ * initial sync is written by the thread that reads the client's messages,
+ * while updates are written by the write manager; bytes written by the
+ * reader are not counted against the backlog limit, but are limited to
+ * SYNC_LIMIT bytes between sends.
+ *
+ * Each client's bytes in and out, unsent backlog and flush latency are
+ * counted in its own Metrics.Connection, which is registered with
+ * DotNetTables while the client is connected.
+ *
+ * @author FRC Team 4030
+ */
+class BufferedStreamProvider implements IOStreamProvider {
+
+    /**
+     * The most unsent bytes held for one client before it is disconnected as
+     * too slow
+     */
+    static final int BACKLOG_LIMIT = 256 * 1024;
+    /**
+     * The most unsent bytes the reader thread may write for one client, as
+     * the initial sync, before it is disconnected
+     */
+    static final int SYNC_LIMIT = 2 * 1024 * 1024;
+    /**
+     * The number of threads sending buffered bytes to clients
+     */
+    static final int WRITERS = 2;
+    private final IOStreamProvider provider;
+    /**
+     * Clients with bytes flushed and waiting for a sender thread, in order
+     */
+    private final Vector ready = new Vector();
+    private boolean closed = false;
+
+    /**
+     * @param provider The provider of the underlying client streams
+     */
+    BufferedStreamProvider(IOStreamProvider provider) {
+        this.provider = provider;
+        for (int i = 0; i < WRITERS; i++) {
+            new Thread(new Writer(), "DotNetTables Client Writer Thread " + i).start();
+        }
+    }
+
+    public IOStream accept() throws IOException {
+        IOStream stream = this.provider.accept();
+        if (stream == null) {
+            return null;
+        }
+        return new BufferedStream(this, stream, DotNetTables.connect());
+    }
+
+    public void close() throws IOException {
+        synchronized (this.ready) {
+            this.closed = true;
+            this.ready.notifyAll();
+        }
+        this.provider.close();
+    }
+
+    /**
+     * Queue a client for the next free sender thread
+     */
+    private void schedule(BufferedStream stream) {
+        synchronized (this.ready) {
+            this.ready.addElement(stream);
+            this.ready.notify();
+        }
+    }
+
+    /**
+     * Sends each queued client its buffered bytes in turn, until the provider
+     * is closed
+     */
+    private class Writer implements Runnable {
+
+        public void run() {
+            try {
+                while (true) {
+                    BufferedStream next;
+                    synchronized (ready) {
+                        while (ready.isEmpty() && !closed) {
+                            ready.wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        next = (BufferedStream) ready.elementAt(0);
+                        ready.removeElementAt(0);
+                    }
+                    next.drain();
+                }
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    /**
+     * A client stream whose output is buffered in memory and sent by the
+     * provider's sender threads
+     */
+    private static class BufferedStream extends OutputStream implements IOStream {
+
+        private final BufferedStreamProvider provider;
+        private final IOStream stream;
+        private final OutputStream out;
+        private final Object lock = new Object();
+        private byte[] filling = new byte[1024];
+        private byte[] draining = new byte[1024];
+        private final InputStream in;
+        private final Metrics.Connection metrics;
+        private volatile Thread reader = null;
+        private int count = 0;
+        /**
+         * When the first byte in the buffer being filled was written
+         */
+        private long since = 0;
+        private int allowance = 0;
+        private boolean flushing = false;
+        /**
+         * Whether this is queued for, or being sent by, a sender thread
+         */
+        private boolean queued = false;
+        private boolean closed = false;
+
+        BufferedStream(BufferedStreamProvider provider, IOStream stream, Metrics.Connection metrics) {
+            this.provider = provider;
+            this.stream = stream;
+            this.out = stream.getOutputStream();
+            this.in = new ReaderStream(this, stream.getInputStream());
+            this.metrics = metrics;
+        }
+
+        public InputStream getInputStream() {
+            return this.in;
+        }
+
+        public OutputStream getOutputStream() {
+            return this;
+        }
+
+        public void close() {
+            synchronized (this.lock) {
+                this.closed = true;
+            }
+            this.stream.close();
+            DotNetTables.disconnect(this.metrics);
+        }
+
+        public void write(int b) throws IOException {
+            synchronized (this.lock) {
+                this.reserve(1);
+                this.filling[this.count++] = (byte) b;
+                this.metrics.queued(this.count);
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (this.lock) {
+                this.reserve(len);
+                System.arraycopy(b, off, this.filling, this.count, len);
+                this.count += len;
+                this.metrics.queued(this.count);
+            }
+        }
+
+        /**
+         * Hand everything written so far to the sender threads
+         */
+        public void flush() throws IOException {
+            synchronized (this.lock) {
+                if (this.closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (this.count > 0) {
+                    this.flushing = true;
+                    if (!this.queued) {
+                        this.queued = true;
+                        this.provider.schedule(this);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Make room for more bytes in the buffer being filled. Must be called
+         * with the lock held.
+         */
+        private void reserve(int len) throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream closed");
+            }
+            int needed = this.count + len;
+            if (this.count == 0) {
+                this.since = System.currentTimeMillis();
+            }
+            if (Thread.currentThread() == this.reader) {
+                // Initial sync (or a protocol reply) from the reader thread
+                this.allowance += len;
+                if (this.allowance > SYNC_LIMIT) {
+                    this.disconnect();
+                    throw new IOException("Initial sync is too large; " + this.count + " bytes unsent");
+                }
+            } else if (needed > BACKLOG_LIMIT + this.allowance) {
+                this.disconnect();
+                throw new IOException("Client is too slow; " + this.count + " bytes unsent");
+            }
+            if (needed > this.filling.length) {
+                int size = this.filling.length * 2;
+                while (size < needed) {
+                    size *= 2;
+                }
+                byte[] larger = new byte[size];
+                System.arraycopy(this.filling, 0, larger, 0, this.count);
+                this.filling = larger;
+            }
+        }
+
+        /**
+         * Drop the connection. Closing the stream also ends the client's
+         * reader, and any send to it in progress. Must be called with the
+         * lock held.
+         */
+        private void disconnect() {
+            this.closed = true;
+            this.stream.close();
+        }
+
+        /**
+         * Send everything flushed so far. Called by a sender thread once the
+         * stream is taken from the queue; no other sender touches it until
+         * this returns.
+         */
+        void drain() {
+            int length;
+            long since;
+            synchronized (this.lock) {
+                if (this.closed) {
+                    this.queued = false;
+                    return;
+                }
+
+                // Swap buffers so writers can keep filling while we send
+                byte[] swap = this.draining;
+                this.draining = this.filling;
+                this.filling = swap;
+                length = this.count;
+                since = this.since;
+                this.count = 0;
+                this.metrics.queued(0);
+                this.allowance = 0;
+                this.flushing = false;
+            }
+            try {
+                this.out.write(this.draining, 0, length);
+                this.out.flush();
+            } catch (IOException ex) {
+                this.close();
+                return;
+            }
+            this.metrics.sent(length, System.currentTimeMillis() - since);
+
+            // Don't hold on to the initial sync's buffer
+            if (this.draining.length > BACKLOG_LIMIT) {
+                this.draining = new byte[1024];
+            }
+
+            // Go to the back of the queue if more was flushed while sending
+            synchronized (this.lock) {
+                if (this.flushing && !this.closed) {
+                    this.provider.schedule(this);
+                } else {
+                    this.queued = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes a client's input through, noting which thread reads it and
+     * counting the bytes read
+     */
+    private static class ReaderStream extends InputStream {
+
+        private final BufferedStream owner;
+        private final InputStream in;
+
+        ReaderStream(BufferedStream owner, InputStream in) {
+            this.owner = owner;
+            this.in = in;
+        }
+
+        private void mark() {
+            if (this.owner.reader == null) {
+                this.owner.reader = Thread.currentThread();
+            }
+        }
+
+        public int read() throws IOException {
+            this.mark();
+            int b = this.in.read();
+            if (b >= 0) {
+                this.owner.metrics.received(1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            this.mark();
+            int n = this.in.read(b, off, len);
+            if (n > 0) {
+                this.owner.metrics.received(n);
+            }
+            return n;
+        }
+
+        public int available() throws IOException {
+            return this.in.available();
+        }
+
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
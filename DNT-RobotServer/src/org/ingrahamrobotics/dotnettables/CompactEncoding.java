@@ -0,0 +1,417 @@
+package org.ingrahamrobotics.dotnettables;
+
+import edu.wpi.first.wpilibj.networktables2.type.ArrayData;
+import edu.wpi.first.wpilibj.networktables2.type.NumberArray;
+import edu.wpi.first.wpilibj.networktables2.type.StringArray;
+import java.util.Hashtable;
+
+/**
+ * The compact wire encoding for one DotNetTable, and its key dictionary.
+ *
+ * Key names are published once, in dictionary entries, and each send refers
+ * to them by id. The dictionary only grows, so an id never changes meaning;
+ * dictionary entry i holds the names of ids i * DICTIONARY_KEYS onwards, and
+ * only the last entry changes when keys are added.
+ *
+ * A restarted publisher assigns ids afresh, and NetworkTables does not order
+ * the dictionary entries against the send, so every dictionary entry and
+ * every send is tagged with the publisher's generation. A send is only
+ * decoded once each dictionary entry it refers to is from its generation.
+ *
+ * A dictionary entry holds the generation followed by the key names. A send
+ * is encoded as a byte stream: the generation as a string, the pair count and
+ * number count as varints, then for each pair a varint of (id << 2 | kind)
+ * followed by the value. Strings are a varint length and a varint per
+ * character, doubles are their 8-byte IEEE 754 bits, ints are zig-zag varints
+ * and booleans are a single varint. NetworkTables writes strings as modified
+ * UTF-8, where characters 1 to 127 take a single byte, so the stream is
+ * packed 7 bits per character into StringArray values, each keyed by
+ * DotNetTable.COMPACT.
+ *
+ * @author FRC Team 4030
+ */
+class CompactEncoding {
+
+    /**
+     * The number of key names held by each dictionary entry. The NetworkTables
+     * array type is limited to 255 elements, which must also hold the
+     * generation.
+     */
+    static final int DICTIONARY_KEYS = 254;
+    /**
+     * The longest string in an encoded send. A modified UTF-8 string is
+     * limited to 65535 bytes, and a zero character takes two.
+     */
+    private static final int CHUNK_CHARS = 16384;
+    private static final int STRING = 0;
+    private static final int DOUBLE = 1;
+    private static final int INT = 2;
+    private static final int BOOLEAN = 3;
+    private final String generation;
+    private String[] names = new String[16];
+    private int size = 0;
+    private Hashtable ids = null;
+    private int published = 0;
+    /**
+     * The generation of each received dictionary entry
+     */
+    private String[] generations = new String[1];
+
+    /**
+     * Create a dictionary for a subscriber, filled by offer()
+     */
+    CompactEncoding() {
+        this(null);
+    }
+
+    /**
+     * Create a dictionary for a publisher
+     *
+     * @param generation Identifies this publisher's ids to subscribers. Must
+     * differ from any earlier publisher of the table.
+     */
+    CompactEncoding(String generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * @param payload A received StringArray
+     * @return True if the array holds a send in the compact encoding
+     */
+    static boolean isCompact(StringArray payload) {
+        return payload.size() >= 2 && payload.size() % 2 == 0 && payload.get(0).equals(DotNetTable.COMPACT);
+    }
+
+    /**
+     * Encode a send
+     *
+     * @param keys The keys of each pair, or the type marker of typed pairs
+     * @param values The values of each pair, or the key of typed pairs
+     * @param pairs The number of pairs
+     * @param numbers The values of the typed pairs, in order
+     * @param count The number of typed pairs
+     * @return The encoded send
+     */
+    StringArray encode(String[] keys, String[] values, int pairs, double[] numbers, int count) {
+        Writer out = new Writer();
+        out.writeString(this.generation);
+        out.writeVarint(pairs);
+        out.writeVarint(count);
+        int next = 0;
+        for (int i = 0; i < pairs; i++) {
+            int kind = kindOf(keys[i]);
+            if (kind == STRING) {
+                out.writeVarint(id(keys[i]) << 2);
+                out.writeString(values[i]);
+                continue;
+            }
+            out.writeVarint((id(values[i]) << 2) | kind);
+            double value = numbers[next++];
+            if (kind == INT) {
+                int n = (int) value;
+                out.writeVarint((n << 1) ^ (n >> 31));
+            } else if (kind == BOOLEAN) {
+                out.writeVarint((value != 0) ? 1 : 0);
+            } else {
+                out.writeLong(Double.doubleToLongBits(value));
+            }
+        }
+        return out.finish();
+    }
+
+    /**
+     * Decode a send into the StringArray and NumberArray layout of typed mode
+     *
+     * @param payload A send in the compact encoding
+     * @return The decoded send, or null if it refers to keys that are not yet
+     * in the dictionary of its generation
+     * @throws ArrayIndexOutOfBoundsException Thrown if the send is truncated
+     */
+    ArrayData[] decode(StringArray payload) throws ArrayIndexOutOfBoundsException {
+        Reader in = new Reader(payload);
+        String sender = in.readString();
+        int pairs = in.readVarint();
+        int count = in.readVarint();
+        StringArray strings = new StringArray();
+        strings.setSize(pairs * 2);
+        NumberArray numbers = new NumberArray();
+        numbers.setSize(DotNetTable.NUMBER_HEADER + count);
+        int next = DotNetTable.NUMBER_HEADER;
+        for (int i = 0; i < pairs; i++) {
+            int header = in.readVarint();
+            int id = header >>> 2;
+            if (id >= this.size || this.names[id] == null || !sender.equals(this.generations[id / DICTIONARY_KEYS])) {
+                return null;
+            }
+            String key = this.names[id];
+            int kind = header & 3;
+            if (kind == STRING) {
+                strings.set(i, key);
+                strings.set(pairs + i, in.readString());
+                continue;
+            }
+            strings.set(pairs + i, key);
+            if (kind == INT) {
+                int n = in.readVarint();
+                strings.set(i, DotNetTable.TYPE_INT);
+                numbers.set(next++, (n >>> 1) ^ -(n & 1));
+            } else if (kind == BOOLEAN) {
+                strings.set(i, DotNetTable.TYPE_BOOLEAN);
+                numbers.set(next++, in.readVarint());
+            } else {
+                strings.set(i, DotNetTable.TYPE_DOUBLE);
+                numbers.set(next++, Double.longBitsToDouble(in.readLong()));
+            }
+        }
+        if (count == 0) {
+            return new ArrayData[]{strings};
+        }
+        return new ArrayData[]{strings, numbers};
+    }
+
+    private static int kindOf(String key) {
+        if (key.equals(DotNetTable.TYPE_DOUBLE)) {
+            return DOUBLE;
+        } else if (key.equals(DotNetTable.TYPE_INT)) {
+            return INT;
+        } else if (key.equals(DotNetTable.TYPE_BOOLEAN)) {
+            return BOOLEAN;
+        }
+        return STRING;
+    }
+
+    /**
+     * @return The dictionary id of the key, adding it if necessary
+     */
+    private int id(String key) {
+        if (this.ids == null) {
+            this.ids = new Hashtable();
+        }
+        Integer id = (Integer) this.ids.get(key);
+        if (id != null) {
+            return id.intValue();
+        }
+        grow(this.size + 1);
+        this.names[this.size] = key;
+        this.ids.put(key, new Integer(this.size));
+        return this.size++;
+    }
+
+    /**
+     * @return The index of the first dictionary entry with keys that have not
+     * been published, or -1 if all keys have been published
+     */
+    int unpublished() {
+        if (this.published == this.size) {
+            return -1;
+        }
+        return this.published / DICTIONARY_KEYS;
+    }
+
+    /**
+     * @return The number of dictionary entries
+     */
+    int entries() {
+        return (this.size + DICTIONARY_KEYS - 1) / DICTIONARY_KEYS;
+    }
+
+    /**
+     * @param index The dictionary entry index
+     * @return The generation and key names held by the dictionary entry
+     */
+    StringArray entry(int index) {
+        int offset = index * DICTIONARY_KEYS;
+        int length = Math.min(DICTIONARY_KEYS, this.size - offset);
+        StringArray out = new StringArray();
+        out.setSize(length + 1);
+        out.set(0, this.generation);
+        for (int i = 0; i < length; i++) {
+            out.set(i + 1, this.names[offset + i]);
+        }
+        return out;
+    }
+
+    /**
+     * Note that every key has been published
+     */
+    void markPublished() {
+        this.published = this.size;
+    }
+
+    /**
+     * Store a received dictionary entry
+     *
+     * @param index The dictionary entry index
+     * @param entry The generation and key names held by the entry
+     */
+    void offer(int index, StringArray entry) {
+        if (entry.size() < 1) {
+            return;
+        }
+        int offset = index * DICTIONARY_KEYS;
+        int length = Math.min(DICTIONARY_KEYS, entry.size() - 1);
+        grow(offset + DICTIONARY_KEYS);
+        if (index >= this.generations.length) {
+            String[] larger = new String[Math.max(index + 1, this.generations.length * 2)];
+            System.arraycopy(this.generations, 0, larger, 0, this.generations.length);
+            this.generations = larger;
+        }
+
+        // Names from another generation mean nothing to this one
+        String sender = entry.get(0);
+        if (!sender.equals(this.generations[index])) {
+            for (int i = 0; i < DICTIONARY_KEYS; i++) {
+                this.names[offset + i] = null;
+            }
+            this.generations[index] = sender;
+        }
+        for (int i = 0; i < length; i++) {
+            this.names[offset + i] = entry.get(i + 1);
+        }
+        this.size = Math.max(this.size, offset + length);
+    }
+
+    private void grow(int needed) {
+        if (needed <= this.names.length) {
+            return;
+        }
+        int length = this.names.length * 2;
+        while (length < needed) {
+            length *= 2;
+        }
+        String[] larger = new String[length];
+        System.arraycopy(this.names, 0, larger, 0, this.size);
+        this.names = larger;
+    }
+
+    /**
+     * Packs a byte stream 7 bits per character
+     */
+    private static class Writer {
+
+        private final StringBuffer chars = new StringBuffer();
+        private int bits = 0;
+        private int held = 0;
+
+        void write(int b) {
+            this.bits = (this.bits << 8) | (b & 0xFF);
+            this.held += 8;
+            while (this.held >= 7) {
+                this.held -= 7;
+                this.chars.append((char) ((this.bits >>> this.held) & 0x7F));
+            }
+            this.bits &= (1 << this.held) - 1;
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        void writeString(String value) {
+            int length = value.length();
+            writeVarint(length);
+            for (int i = 0; i < length; i++) {
+                writeVarint(value.charAt(i));
+            }
+        }
+
+        /**
+         * @return The packed stream, split into chunks
+         */
+        StringArray finish() {
+            if (this.held > 0) {
+                this.chars.append((char) ((this.bits << (7 - this.held)) & 0x7F));
+            }
+            int length = this.chars.length();
+            int chunks = Math.max(1, (length + CHUNK_CHARS - 1) / CHUNK_CHARS);
+            if (chunks * 2 > 255) {
+                throw new IllegalStateException("Send is too large for the compact encoding: " + length + " characters");
+            }
+            String packed = this.chars.toString();
+            StringArray out = new StringArray();
+            out.setSize(chunks * 2);
+            for (int i = 0; i < chunks; i++) {
+                out.set(i, DotNetTable.COMPACT);
+                out.set(chunks + i, packed.substring(i * CHUNK_CHARS, Math.min(length, (i + 1) * CHUNK_CHARS)));
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Unpacks a byte stream packed by Writer
+     */
+    private static class Reader {
+
+        private final StringArray payload;
+        private final int chunks;
+        private int chunk = 0;
+        private String current;
+        private int pos = 0;
+        private int bits = 0;
+        private int held = 0;
+
+        Reader(StringArray payload) {
+            this.payload = payload;
+            this.chunks = payload.size() / 2;
+            this.current = payload.get(this.chunks);
+        }
+
+        int read() throws ArrayIndexOutOfBoundsException {
+            while (this.held < 8) {
+                while (this.pos >= this.current.length()) {
+                    if (++this.chunk >= this.chunks) {
+                        throw new ArrayIndexOutOfBoundsException("Compact send is truncated");
+                    }
+                    this.current = this.payload.get(this.chunks + this.chunk);
+                    this.pos = 0;
+                }
+                this.bits = (this.bits << 7) | (this.current.charAt(this.pos++) & 0x7F);
+                this.held += 7;
+            }
+            this.held -= 8;
+            int b = (this.bits >>> this.held) & 0xFF;
+            this.bits &= (1 << this.held) - 1;
+            return b;
+        }
+
+        int readVarint() throws ArrayIndexOutOfBoundsException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = read();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ArrayIndexOutOfBoundsException("Compact send has an invalid varint");
+        }
+
+        long readLong() throws ArrayIndexOutOfBoundsException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | read();
+            }
+            return value;
+        }
+
+        String readString() throws ArrayIndexOutOfBoundsException {
+            int length = readVarint();
+            StringBuffer value = new StringBuffer(length);
+            for (int i = 0; i < length; i++) {
+                value.append((char) readVarint());
+            }
+            return value.toString();
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package org.ingrahamrobotics.dotnettables;
 
+import edu.wpi.first.wpilibj.networktables2.NetworkTableEntry;
+import edu.wpi.first.wpilibj.networktables2.type.ArrayData;
+import edu.wpi.first.wpilibj.networktables2.type.NumberArray;
 import edu.wpi.first.wpilibj.networktables2.type.StringArray;
 import edu.wpi.first.wpilibj.tables.ITable;
 import edu.wpi.first.wpilibj.tables.ITableListener;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
 
 /**
  * A named and published or subscribed DotNetTable. DotNetTables provide
@@ -26,22 +31,200 @@ public class DotNetTable implements ITableListener {
      * being declared "stale".
      */
     public static final double STALE_FACTOR = 2.5;
+    /**
+     * The multiple of the update interval after which an unchanged table is
+     * re-sent by the publishing scheduler, to keep subscribers from declaring
+     * it "stale". Must be less than STALE_FACTOR.
+     */
+    public static final int HEARTBEAT_FACTOR = 2;
     /**
      * The reserved key name used to publish the update interval to subscribers.
      */
     public static final String UPDATE_INTERVAL = "_UPDATE_INTERVAL";
+    /**
+     * The reserved key name used to publish the sequence number of each send()
+     * in delta mode.
+     */
+    public static final String SEQUENCE = "_SEQUENCE";
+    /**
+     * The reserved key name used to identify the full snapshot a delta update
+     * is relative to.
+     */
+    public static final String BASE = "_BASE";
+    /**
+     * The reserved key name used to identify the publisher of a delta update
+     * and of its full snapshot. Sequence numbers start again when a publisher
+     * restarts, so a delta only applies to a snapshot with the same epoch.
+     */
+    public static final String EPOCH = "_EPOCH";
+    /**
+     * The reserved key name used to mark removed keys in a delta update. The
+     * related value is the name of the removed key.
+     */
+    public static final String REMOVED = "_REMOVED";
+    /**
+     * The suffix appended to the table name to form the NetworkTable entry that
+     * holds the full snapshot for delta-mode tables.
+     */
+    public static final String BASE_SUFFIX = "#BASE";
+    /**
+     * The reserved key name used to publish the number of segments in a
+     * segmented send().
+     */
+    public static final String SEGMENTS = "_SEGMENTS";
+    /**
+     * The separator between an entry name and the index of a trailing segment.
+     * Segment 0 is always published under the unmodified entry name. Table
+     * names must not contain this character.
+     */
+    public static final String SEGMENT_SUFFIX = "#";
+    /**
+     * The maximum number of key-value pairs carried by a single segment. The
+     * NetworkTables array type is limited to 255 elements, which must also
+     * hold the segment header.
+     */
+    public static final int SEGMENT_PAIRS = 120;
+    /**
+     * The separator between an entry name and the index of a trailing
+     * NumberArray segment in typed mode.
+     */
+    public static final String NUMBER_SUFFIX = "#N";
+    /**
+     * The maximum number of values carried by a single NumberArray segment.
+     */
+    public static final int SEGMENT_NUMBERS = 250;
+    /**
+     * The reserved key name used to publish the number of NumberArray segments
+     * in a segmented send().
+     */
+    public static final String NUMBERS = "_NUMBERS";
+    /**
+     * The reserved key names used to mark typed keys in typed mode. The related
+     * value is the name of the typed key; the number itself is carried in the
+     * NumberArray segments, in the same order as the marked keys.
+     */
+    public static final String TYPE_DOUBLE = "_DOUBLE";
+    public static final String TYPE_INT = "_INT";
+    public static final String TYPE_BOOLEAN = "_BOOLEAN";
+    /**
+     * The reserved key name used to mark the values of a send in compact mode.
+     * The values are the send's encoded bytes.
+     */
+    public static final String COMPACT = "_COMPACT";
+    /**
+     * The separator between an entry name and the index of a key dictionary
+     * entry in compact mode.
+     */
+    public static final String KEYS_SUFFIX = "#K";
+    /**
+     * Write priorities for published tables. High priority tables are
+     * written as soon as they are sent; bulk tables are deferred and written
+     * at a limited rate so they cannot delay other tables.
+     */
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_BULK = -1;
+    /**
+     * Value types. Numbers are held in slots with one of the numeric types;
+     * STRING only identifies string values to persistent stores.
+     */
+    static final byte STRING = 0;
+    static final byte DOUBLE = 1;
+    static final byte INT = 2;
+    static final byte BOOLEAN = 3;
+    static final int NUMBER_HEADER = 3;
+    private static final Random epochs = new Random();
     private String name;
     private int updateInterval;
     private boolean writable;
     /**
-     * The underlying local data store for this table. This is converted to a
-     * StringArray when published to the network (or from a StringArray when
-     * received from the network)
+     * The underlying local data store for this table's string values. This is
+     * converted to a StringArray when published to the network (or from a
+     * StringArray when received from the network). Numeric and boolean values
+     * are held separately in primitive slots and are only available as strings
+     * through getValue().
      */
     public Hashtable data;
+    private Hashtable slots;
+    private double[] numbers;
+    private byte[] types;
+    private int[] free;
+    private int freeCount;
+    private int nextSlot;
     private DotNetTableEvents changeCallback;
     private DotNetTableEvents staleCallback;
+    /**
+     * Events waiting on the DotNetTables callback thread. Guarded by its lock.
+     */
+    int events;
+    private boolean stale;
+    /**
+     * Position of this table in the DotNetTables stale watcher queue, or -1
+     * if it is not being watched. Guarded by the watcher's lock.
+     */
+    int watchIndex;
     private long lastUpdate;
+    private long lastSend;
+    private long nextCheck;
+    private boolean changed;
+    private boolean typed;
+    private boolean delta;
+    private boolean compact;
+    private int priority;
+    private double maxRate;
+    /**
+     * The shortest time between sends or deliveries, in milliseconds, or 0 if
+     * the table is not rate limited
+     */
+    private long window;
+    private boolean sendHeld;
+    /**
+     * Guards the receive buffers and the entries held by the rate limit
+     */
+    private final Object receiving;
+    /**
+     * Received entries held by the rate limit, by entry name. Each holds only
+     * its latest value.
+     */
+    private Hashtable deferred;
+    private long lastDelivery;
+    private Thread delivering;
+    private int heldEvents;
+    /**
+     * The History of each key being recorded
+     */
+    private Hashtable histories;
+    private PersistentStore persistent;
+    private CompactEncoding dictionary;
+    private StringArray undecoded;
+    private StringArray undecodedBase;
+    private final String epoch;
+    private int sequence;
+    private int baseSequence;
+    private String baseEpoch;
+    private Hashtable dirty;
+    private Hashtable removed;
+    private ArrayData[] base;
+    private int appliedBase;
+    private ArrayData[] pending;
+    private Segments updates;
+    private Segments snapshots;
+    private Hashtable buffers;
+    private ArrayData[] whole;
+    private int version;
+    private boolean tracking;
+    private volatile Snapshot snapshot;
+    /**
+     * Counters for DotNetTables.getMetrics(). Updated with this table locked,
+     * as callbacks may be counted by several threads at once; volatile so
+     * that snapshots may read them without the lock.
+     */
+    private volatile long sends;
+    private volatile long receives;
+    private volatile long bytesEncoded;
+    private volatile long callbacks;
+    private volatile long callbackTime;
+    private volatile long callbackMax;
 
     /**
      * Create a new DotNetTable with the specified name and ro/rw designation.
@@ -51,12 +234,63 @@ public class DotNetTable implements ITableListener {
      */
     protected DotNetTable(String name, boolean writable) {
         this.lastUpdate = 0;
+        this.lastSend = 0;
+        this.nextCheck = 0;
+        this.changed = false;
         this.name = name;
         this.writable = writable;
         this.updateInterval = -1;
         this.changeCallback = null;
         this.staleCallback = null;
+        this.events = 0;
+        this.stale = false;
+        this.watchIndex = -1;
         data = new Hashtable();
+        this.slots = new Hashtable();
+        this.numbers = new double[8];
+        this.types = new byte[8];
+        this.free = new int[8];
+        this.freeCount = 0;
+        this.nextSlot = 0;
+        this.typed = false;
+        this.delta = false;
+        this.compact = false;
+        this.priority = PRIORITY_NORMAL;
+        this.maxRate = 0;
+        this.window = 0;
+        this.sendHeld = false;
+        this.receiving = new Object();
+        this.deferred = new Hashtable();
+        this.lastDelivery = 0;
+        this.delivering = null;
+        this.heldEvents = 0;
+        this.histories = new Hashtable();
+        this.persistent = null;
+        this.dictionary = null;
+        this.undecoded = null;
+        this.undecodedBase = null;
+        this.epoch = Integer.toString(epochs.nextInt() ^ System.identityHashCode(this), 36);
+        this.sequence = 0;
+        this.baseSequence = -1;
+        this.baseEpoch = null;
+        this.dirty = new Hashtable();
+        this.removed = new Hashtable();
+        this.base = null;
+        this.appliedBase = -1;
+        this.pending = null;
+        this.updates = new Segments(true);
+        this.snapshots = new Segments(false);
+        this.buffers = new Hashtable();
+        this.whole = new ArrayData[1];
+        this.version = 0;
+        this.tracking = false;
+        this.snapshot = null;
+        this.sends = 0;
+        this.receives = 0;
+        this.bytesEncoded = 0;
+        this.callbacks = 0;
+        this.callbackTime = 0;
+        this.callbackMax = 0;
     }
 
     /**
@@ -108,7 +342,7 @@ public class DotNetTable implements ITableListener {
     }
 
     /**
-     * @return The expected update interval for this table, in seconds
+     * @return The expected update interval for this table, in milliseconds
      */
     public int getInterval() {
         return this.updateInterval;
@@ -121,7 +355,12 @@ public class DotNetTable implements ITableListener {
      * interval; subscribers are informed of the interval and calculate their
      * "stale" indicator based on expectations set by the publisher.
      *
-     * @param update The desired update interval, in seconds
+     * Tables with an update interval are sent automatically by the shared
+     * DotNetTables publishing scheduler. Tables with no changes are skipped,
+     * except for a periodic heartbeat to keep subscribers fresh. Callers may
+     * still send() at any time.
+     *
+     * @param update The desired update interval, in milliseconds
      * @throws IllegalStateException Thrown if this table is not writable (i.e.
      * is subscribed rather than published)
      */
@@ -131,11 +370,158 @@ public class DotNetTable implements ITableListener {
             update = -1;
         }
         this.updateInterval = update;
+        if (update > 0) {
+            this.nextCheck = System.currentTimeMillis() + update;
+            DotNetTables.schedule();
+        }
+    }
+
+    /**
+     * @return True if this table publishes numeric and boolean values natively
+     */
+    public boolean isTyped() {
+        return this.typed;
+    }
+
+    /**
+     * Enable or disable typed mode for this table. In typed mode numeric and
+     * boolean values are published in NumberArray segments rather than as
+     * decimal strings. Subscribers must also be typed-aware; older subscribers
+     * will not see numeric or boolean keys.
+     *
+     * @param typed True to publish numbers natively, false to publish strings
+     * @throws IllegalStateException Thrown if this table is not writable (i.e.
+     * is subscribed rather than published)
+     */
+    public synchronized void setTyped(boolean typed) throws IllegalStateException {
+        this.throwIfNotWritable();
+        this.typed = typed;
+        this.rebase();
+    }
+
+    /**
+     * @return True if this table is published as deltas against a periodic full
+     * snapshot
+     */
+    public boolean isDelta() {
+        return this.delta;
+    }
+
+    /**
+     * Enable or disable delta mode for this table. In delta mode each send()
+     * transmits only the keys changed or removed since the last full snapshot.
+     * A new full snapshot is published automatically when the accumulated
+     * changes grow to half the size of the table. Subscribers must also be
+     * delta-aware; older subscribers will see only the changed keys.
+     *
+     * @param delta True to enable delta mode, false for full sends
+     * @throws IllegalStateException Thrown if this table is not writable (i.e.
+     * is subscribed rather than published)
+     */
+    public synchronized void setDelta(boolean delta) throws IllegalStateException {
+        this.throwIfNotWritable();
+        this.delta = delta;
+        this.rebase();
+    }
+
+    /**
+     * @return True if this table is published in the compact encoding
+     */
+    public boolean isCompact() {
+        return this.compact;
+    }
+
+    /**
+     * Enable or disable compact mode for this table. In compact mode key names
+     * are published once, in a dictionary, and each send() refers to them by
+     * number; values are published in binary, with numeric and boolean values
+     * encoded natively as in typed mode. Compact mode may be combined with
+     * delta mode. Subscribers must also be compact-aware; older subscribers
+     * will see only a single undecoded key.
+     *
+     * @param compact True to publish in the compact encoding
+     * @throws IllegalStateException Thrown if this table is not writable (i.e.
+     * is subscribed rather than published)
+     */
+    public synchronized void setCompact(boolean compact) throws IllegalStateException {
+        this.throwIfNotWritable();
+        this.compact = compact;
+        if (compact && this.dictionary == null) {
+            this.dictionary = new CompactEncoding(this.epoch);
+        }
+        this.rebase();
+    }
+
+    /**
+     * @return The write priority of this table
+     */
+    public int getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Set the write priority of this table. Sends of a high priority table are
+     * written to the network immediately, ahead of any other queued updates.
+     * Sends of a bulk table, such as large diagnostics, are deferred and
+     * written a few entries at a time, so they never delay other tables by
+     * more than a small write. Priority has no effect if NetworkTables was
+     * started elsewhere, as WPILib does on the robot.
+     *
+     * @param priority PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_BULK
+     * @throws IllegalStateException Thrown if this table is not writable (i.e.
+     * is subscribed rather than published)
+     */
+    public void setPriority(int priority) throws IllegalStateException {
+        this.throwIfNotWritable();
+        if (priority != PRIORITY_HIGH && priority != PRIORITY_NORMAL && priority != PRIORITY_BULK) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+        if (priority != this.priority) {
+            this.priority = priority;
+            DotNetTables.reprioritize();
+        }
+    }
+
+    /**
+     * @return The most updates per second applied to or sent from this table,
+     * or 0 if it is not rate limited
+     */
+    public double getMaxRate() {
+        return this.maxRate;
+    }
+
+    /**
+     * Limit how often this table is updated. A subscribed table applies
+     * received updates and dispatches its change callback at most maxRate
+     * times per second; updates that arrive in between are held, and only
+     * the latest value of each entry is applied when the period ends. This
+     * suits dashboards that cannot usefully redraw as fast as the publisher
+     * sends. Held updates are applied, and their callbacks dispatched, on the
+     * DotNetTables publishing scheduler thread unless
+     * DotNetTables.setAsyncCallbacks() is enabled.
+     *
+     * A published table likewise sends at most maxRate times per second. A
+     * send() made too soon after the last one is deferred, and the latest
+     * contents of the table are sent when the period ends, so intermediate
+     * values never reach the network at all.
+     *
+     * @param maxRate The most updates per second, or 0 for no limit
+     */
+    public void setMaxRate(double maxRate) {
+        if (!(maxRate >= 0)) {
+            throw new IllegalArgumentException("Invalid rate: " + maxRate);
+        }
+        this.maxRate = maxRate;
+        this.window = (maxRate > 0) ? (long) Math.ceil(1000 / maxRate) : 0;
+
+        // Release anything held under the old limit
+        DotNetTables.schedule();
     }
 
     /**
      * Sets the callback method to be dispatched when data in this table is
-     * updated.
+     * updated. Callbacks run on the NetworkTables thread that received the
+     * update, unless DotNetTables.setAsyncCallbacks() is enabled.
      *
      * @param callback The method to be dispatched. Must implement
      * DotNetTableEvents.
@@ -147,7 +533,9 @@ public class DotNetTable implements ITableListener {
     /**
      * Sets the callback method to be dispatched when the data in this table
      * goes "stale". This occurs when the period since the last update exceeds
-     * the publisher-provided update interval.
+     * the publisher-provided update interval. The callback is dispatched once
+     * when the table goes stale, and once more when the next update makes it
+     * fresh again; use isStale() to tell the two apart.
      *
      * @param callback The method to be dispatched. Must implement
      * DotNetTableEvents.
@@ -157,21 +545,328 @@ public class DotNetTable implements ITableListener {
             throw new IllegalStateException("Table is local: " + this.name);
         }
         this.staleCallback = callback;
-        throw new IllegalStateException("Not supported yet.");
+        if (callback != null) {
+            DotNetTables.watch(this);
+        }
+    }
+
+    /**
+     * @return The time at which this table goes stale if no further updates
+     * arrive, or -1 if it cannot go stale
+     */
+    long staleDeadline() {
+        if (this.updateInterval <= 0 || this.staleCallback == null) {
+            return -1;
+        }
+        return this.lastUpdate + (long) (this.updateInterval * STALE_FACTOR);
+    }
+
+    /**
+     * Mark this table stale and dispatch the stale callback, if the table has
+     * actually gone stale and was not already marked
+     *
+     * @return False if the table is still fresh and should be watched again
+     */
+    boolean expire() {
+        synchronized (this) {
+            if (this.stale) {
+                return true;
+            }
+            if (!this.isStale()) {
+                return false;
+            }
+            this.stale = true;
+        }
+        this.dispatchStale();
+        return true;
+    }
+
+    /**
+     * Dispatch the stale callback, on the callback thread if enabled
+     */
+    private void dispatchStale() {
+        if (Thread.currentThread() == this.delivering) {
+            this.heldEvents |= DotNetTables.STALE;
+            return;
+        }
+        if (this.staleCallback != null && !DotNetTables.post(this, DotNetTables.STALE)) {
+            this.fireStale();
+        }
+    }
+
+    /**
+     * Dispatch the change callback, on the callback thread if enabled
+     */
+    private void dispatchChanged() {
+        if (Thread.currentThread() == this.delivering) {
+            this.heldEvents |= DotNetTables.CHANGED;
+            return;
+        }
+        if (this.changeCallback != null && !DotNetTables.post(this, DotNetTables.CHANGED)) {
+            this.fireChanged();
+        }
+    }
+
+    void fireStale() {
+        DotNetTableEvents callback = this.staleCallback;
+        if (callback != null) {
+            long start = System.currentTimeMillis();
+            try {
+                callback.stale(this);
+            } finally {
+                this.timed(start);
+            }
+        }
+    }
+
+    void fireChanged() {
+        DotNetTableEvents callback = this.changeCallback;
+        if (callback != null) {
+            long start = System.currentTimeMillis();
+            try {
+                callback.changed(this);
+            } finally {
+                this.timed(start);
+            }
+        }
+    }
+
+    /**
+     * Count a callback that started at the specified time
+     */
+    private void timed(long start) {
+        long time = System.currentTimeMillis() - start;
+        synchronized (this) {
+            this.callbacks++;
+            this.callbackTime += time;
+            if (time > this.callbackMax) {
+                this.callbackMax = time;
+            }
+        }
+    }
+
+    /**
+     * Count the bytes of a value pushed for this table, as NetworkTables
+     * encodes it, taking one byte per character
+     */
+    void encoded(Object data) {
+        long bytes;
+        if (data instanceof StringArray) {
+            StringArray array = (StringArray) data;
+            bytes = 1;
+            for (int i = 0; i < array.size(); i++) {
+                bytes += 2 + array.get(i).length();
+            }
+        } else if (data instanceof NumberArray) {
+            bytes = 1 + 8 * ((NumberArray) data).size();
+        } else if (data instanceof String) {
+            bytes = 2 + ((String) data).length();
+        } else {
+            bytes = 8;
+        }
+        this.bytesEncoded += bytes;
+    }
+
+    /**
+     * @param now The current time, in milliseconds
+     * @return A snapshot of this table's counters
+     */
+    Metrics.Table metrics(long now) {
+        long last = this.lastUpdate;
+        return new Metrics.Table(this.name, this.writable, this.sends, this.receives, this.bytesEncoded, (last > 0) ? now - last : -1, this.callbacks, this.callbackTime, this.callbackMax);
     }
 
     /**
      * Clear all data from this table
      */
-    public void clear() {
+    public synchronized void clear() {
+        this.changed = true;
         data.clear();
+        slots.clear();
+        freeCount = 0;
+        nextSlot = 0;
+        if (this.persistent != null) {
+            this.persistent.changed(null);
+        }
+        if (this.writable) {
+            this.rebase();
+        } else if (this.tracking) {
+            this.version++;
+            this.snapshot = new Snapshot(this);
+        }
     }
 
     /**
      * @return A set of all keys in this table
      */
     public Enumeration keys() {
-        return data.keys();
+        if (slots.isEmpty()) {
+            return data.keys();
+        }
+        Vector out = new Vector(data.size() + slots.size());
+        for (Enumeration it = data.keys(); it.hasMoreElements();) {
+            out.addElement(it.nextElement());
+        }
+        for (Enumeration it = slots.keys(); it.hasMoreElements();) {
+            out.addElement(it.nextElement());
+        }
+        return out.elements();
+    }
+
+    /**
+     * Get an immutable, consistent view of this table. Subscribed tables take
+     * a new snapshot each time an update is received, and published tables
+     * each time they are sent. Once the first snapshot has been taken, reading
+     * the current snapshot never blocks or waits on the network thread.
+     *
+     * @return The most recent snapshot of this table
+     */
+    public Snapshot snapshot() {
+        Snapshot current = this.snapshot;
+        if (current == null) {
+            // Start taking snapshots, beginning with the current contents
+            synchronized (this) {
+                if (this.snapshot == null) {
+                    this.tracking = true;
+                    this.snapshot = new Snapshot(this);
+                }
+                current = this.snapshot;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Start recording the values of the specified key. A subscribed table
+     * records a sample each time an update is received, and a published table
+     * each time it is sent; string values are recorded if they parse as
+     * numbers. The oldest samples are discarded once capacity is reached, so
+     * memory stays bounded however long the table is updated.
+     *
+     * @param key The key to record
+     * @param capacity The most samples held
+     * @return The key's history. If the key is already recorded with the same
+     * capacity, its existing history.
+     */
+    public synchronized History keepHistory(String key, int capacity) {
+        History history = (History) this.histories.get(key);
+        if (history == null || history.capacity() != capacity) {
+            history = new History(capacity);
+            this.histories.put(key, history);
+        }
+        return history;
+    }
+
+    /**
+     * @param key The key in question
+     * @return The key's history, or null if it is not being recorded
+     */
+    public History history(String key) {
+        return (History) this.histories.get(key);
+    }
+
+    /**
+     * Stop recording the values of the specified key and discard its history
+     *
+     * @param key The key to stop recording
+     */
+    public synchronized void dropHistory(String key) {
+        this.histories.remove(key);
+    }
+
+    /**
+     * Record the current value of each key being recorded. Must be called
+     * with the table locked.
+     */
+    private void record(long now) {
+        if (this.histories.isEmpty()) {
+            return;
+        }
+        for (Enumeration it = this.histories.keys(); it.hasMoreElements();) {
+            String key = (String) it.nextElement();
+            double value;
+            Integer slot = (Integer) slots.get(key);
+            if (slot != null) {
+                value = numbers[slot.intValue()];
+            } else {
+                String text = (String) data.get(key);
+                if (text == null) {
+                    continue;
+                } else if (text.equals("true") || text.equals("false")) {
+                    value = text.equals("true") ? 1 : 0;
+                } else {
+                    try {
+                        value = Double.parseDouble(text);
+                    } catch (NumberFormatException ex) {
+                        continue;
+                    }
+                }
+            }
+            ((History) this.histories.get(key)).add(now, value);
+        }
+    }
+
+    /**
+     * Set a value loaded from a persistent store, whether or not this table is
+     * writable
+     */
+    synchronized void restore(String key, byte type, String text, double number) {
+        if (type == STRING) {
+            release(key);
+            data.put(key, text);
+        } else {
+            data.remove(key);
+            store(key, number, type);
+        }
+        if (this.writable) {
+            this.touch(key);
+        }
+    }
+
+    /**
+     * Save changes to a persistent store from now on, once restore() has
+     * loaded its contents
+     */
+    synchronized void persist(PersistentStore store) {
+        this.persistent = store;
+        if (!this.writable) {
+            this.version++;
+            if (this.tracking) {
+                this.snapshot = new Snapshot(this);
+            }
+        }
+    }
+
+    /**
+     * Pass the current values of keys to a persistent store
+     *
+     * @param keys The keys to pass, or null for every key
+     */
+    synchronized void save(PersistentStore store, Hashtable keys) {
+        if (keys == null) {
+            for (Enumeration it = data.keys(); it.hasMoreElements();) {
+                String key = (String) it.nextElement();
+                store.saved(key, STRING, (String) data.get(key), 0);
+            }
+            for (Enumeration it = slots.keys(); it.hasMoreElements();) {
+                String key = (String) it.nextElement();
+                int slot = ((Integer) slots.get(key)).intValue();
+                store.saved(key, types[slot], null, numbers[slot]);
+            }
+            return;
+        }
+        for (Enumeration it = keys.keys(); it.hasMoreElements();) {
+            String key = (String) it.nextElement();
+            String value = (String) data.get(key);
+            Integer slot = (Integer) slots.get(key);
+            if (value != null) {
+                store.saved(key, STRING, value, 0);
+            } else if (slot != null) {
+                store.saved(key, types[slot.intValue()], null, numbers[slot.intValue()]);
+            } else {
+                store.removed(key);
+            }
+        }
     }
 
     /**
@@ -179,7 +874,7 @@ public class DotNetTable implements ITableListener {
      * @return True if the key exists in the table, otherwise false
      */
     public boolean exists(String key) {
-        return data.containsKey(key);
+        return data.containsKey(key) || slots.containsKey(key);
     }
 
     /**
@@ -190,9 +885,13 @@ public class DotNetTable implements ITableListener {
      * @throws IllegalStateException Thrown if the table is not writable (i.e.
      * is subscribed)
      */
-    public void setValue(String key, String value) throws IllegalStateException {
+    public synchronized void setValue(String key, String value) throws IllegalStateException {
         this.throwIfNotWritable();
-        data.put(key, value);
+        boolean retyped = release(key);
+        Object old = data.put(key, value);
+        if (retyped || !value.equals(old)) {
+            this.touch(key);
+        }
         this.lastUpdate = System.currentTimeMillis();
     }
 
@@ -205,7 +904,7 @@ public class DotNetTable implements ITableListener {
      * is subscribed)
      */
     public void setValue(String key, double value) throws IllegalStateException {
-        this.setValue(key, Double.toString(value));
+        this.setNumber(key, value, DOUBLE);
     }
 
     /**
@@ -217,7 +916,42 @@ public class DotNetTable implements ITableListener {
      * is subscribed)
      */
     public void setValue(String key, int value) throws IllegalStateException {
-        this.setValue(key, Integer.toString(value));
+        this.setNumber(key, value, INT);
+    }
+
+    /**
+     * Add or replace the specified key-value pair.
+     *
+     * @param key The key to be added or replaced
+     * @param value The value to be added or replaced
+     * @throws IllegalStateException Thrown if the table is not writable (i.e.
+     * is subscribed)
+     */
+    public void setValue(String key, boolean value) throws IllegalStateException {
+        this.setNumber(key, value ? 1 : 0, BOOLEAN);
+    }
+
+    private synchronized void setNumber(String key, double value, byte type) throws IllegalStateException {
+        this.throwIfNotWritable();
+        boolean retyped = (data.remove(key) != null);
+        if (store(key, value, type) || retyped) {
+            this.touch(key);
+        }
+        this.lastUpdate = System.currentTimeMillis();
+    }
+
+    /**
+     * Note a changed key for the next send()
+     */
+    private void touch(String key) {
+        this.changed = true;
+        if (this.delta) {
+            dirty.put(key, key);
+            removed.remove(key);
+        }
+        if (this.persistent != null) {
+            this.persistent.changed(key);
+        }
     }
 
     /**
@@ -228,17 +962,35 @@ public class DotNetTable implements ITableListener {
      * @throws IllegalStateException Thrown if the table is not writable (i.e.
      * is subscribed)
      */
-    public void remove(String key) throws IllegalStateException {
+    public synchronized void remove(String key) throws IllegalStateException {
         this.throwIfNotWritable();
-        data.remove(key);
+        boolean existed = (data.remove(key) != null);
+        if (release(key) || existed) {
+            this.changed = true;
+            if (this.delta) {
+                dirty.remove(key);
+                removed.put(key, key);
+            }
+            if (this.persistent != null) {
+                this.persistent.changed(key);
+            }
+        }
     }
 
     /**
      * @param key The key of the value to be retrieved from the table
-     * @return The related value
+     * @return The related value. Numeric and boolean values are formatted as
+     * strings.
      */
     public String getValue(String key) {
-        return (String) data.get(key);
+        String value = (String) data.get(key);
+        if (value == null) {
+            Integer slot = (Integer) slots.get(key);
+            if (slot != null) {
+                value = format(slot.intValue());
+            }
+        }
+        return value;
     }
 
     /**
@@ -246,6 +998,10 @@ public class DotNetTable implements ITableListener {
      * @return The related value
      */
     public double getDouble(String key) {
+        Integer slot = (Integer) slots.get(key);
+        if (slot != null) {
+            return numbers[slot.intValue()];
+        }
         return Double.parseDouble(getValue(key));
     }
 
@@ -254,89 +1010,1110 @@ public class DotNetTable implements ITableListener {
      * @return The related value
      */
     public int getInt(String key) {
+        Integer slot = (Integer) slots.get(key);
+        if (slot != null) {
+            return (int) numbers[slot.intValue()];
+        }
         return Integer.parseInt(getValue(key));
     }
 
-    private void recv(StringArray value) {
-        // Unpack the new data
-        data = SAtoHM(value);
-        this.lastUpdate = System.currentTimeMillis();
+    /**
+     * @param key The key of the value to be retrieved from the table
+     * @return The related value
+     */
+    public boolean getBoolean(String key) {
+        Integer slot = (Integer) slots.get(key);
+        if (slot != null) {
+            return numbers[slot.intValue()] != 0;
+        }
+        return "true".equals(getValue(key));
+    }
+
+    /**
+     * Store a number in the primitive slot for the specified key
+     *
+     * @return True if the stored value or type changed
+     */
+    private boolean store(String key, double value, byte type) {
+        int i;
+        Integer slot = (Integer) slots.get(key);
+        if (slot == null) {
+            if (freeCount > 0) {
+                i = free[--freeCount];
+            } else {
+                if (nextSlot == numbers.length) {
+                    grow(numbers.length * 2);
+                }
+                i = nextSlot++;
+            }
+            slots.put(key, new Integer(i));
+        } else {
+            i = slot.intValue();
+            if (types[i] == type && numbers[i] == value) {
+                return false;
+            }
+        }
+        numbers[i] = value;
+        types[i] = type;
+        return true;
+    }
+
+    /**
+     * Release the primitive slot for the specified key, if any
+     *
+     * @return True if the key had a slot
+     */
+    private boolean release(String key) {
+        Integer slot = (Integer) slots.remove(key);
+        if (slot == null) {
+            return false;
+        }
+        free[freeCount++] = slot.intValue();
+        return true;
+    }
+
+    private void grow(int size) {
+        double[] newNumbers = new double[size];
+        byte[] newTypes = new byte[size];
+        int[] newFree = new int[size];
+        System.arraycopy(numbers, 0, newNumbers, 0, numbers.length);
+        System.arraycopy(types, 0, newTypes, 0, types.length);
+        System.arraycopy(free, 0, newFree, 0, free.length);
+        numbers = newNumbers;
+        types = newTypes;
+        free = newFree;
+    }
+
+    private String format(int slot) {
+        return format(types[slot], numbers[slot]);
+    }
+
+    private static String format(byte type, double value) {
+        switch (type) {
+            case INT:
+                return Integer.toString((int) value);
+            case BOOLEAN:
+                return (value != 0) ? "true" : "false";
+            default:
+                return Double.toString(value);
+        }
+    }
+
+    private void recv(ArrayData[] value) {
+        // Only snapshot() and clear() can contend for this lock
+        synchronized (this) {
+            String deltaBase = find(value, BASE);
+            if (deltaBase == null) {
+                // Full update -- unpack the new data
+                this.unpack(value, true);
+                this.appliedBase = -1;
+            } else if (this.base != null && Integer.parseInt(deltaBase) == this.baseSequence
+                    && same(find(value, EPOCH), this.baseEpoch)) {
+                // Delta against the snapshot we hold -- merge the changes
+                this.pending = null;
+                if (this.appliedBase != this.baseSequence) {
+                    this.unpack(this.base, true);
+                    this.appliedBase = this.baseSequence;
+                }
+                this.unpack(value, false);
+            } else {
+                // Delta against a snapshot we haven't seen yet -- wait for it,
+                // and stop reusing the buffers it is held in
+                this.pending = value;
+                this.buffers.clear();
+                this.updates.detach();
+                this.whole = new ArrayData[1];
+                return;
+            }
+            this.lastUpdate = System.currentTimeMillis();
+            this.receives++;
+            if (this.persistent != null) {
+                this.persistent.changed(null);
+            }
+            this.version++;
+            if (this.tracking) {
+                this.snapshot = new Snapshot(this);
+            }
+            this.record(this.lastUpdate);
+        }
 
         // Note the published update interval
+        int interval = this.updateInterval;
         if (this.exists(UPDATE_INTERVAL)) {
             this.updateInterval = this.getInt(UPDATE_INTERVAL);
         }
 
+        // The stale watcher picks up the new deadline lazily; it only needs a
+        // nudge if the table was stale or the interval changed
+        if (this.staleCallback != null) {
+            boolean fresh;
+            synchronized (this) {
+                fresh = this.stale;
+                this.stale = false;
+            }
+            if (fresh || interval != this.updateInterval) {
+                DotNetTables.watch(this);
+            }
+            if (fresh) {
+                this.dispatchStale();
+            }
+        }
+
         // Dispatch our callback, if any
-        if (changeCallback != null) {
-            changeCallback.changed(this);
+        this.dispatchChanged();
+    }
+
+    private void recvBase(ArrayData[] value) {
+        String seq = find(value, SEQUENCE);
+        if (seq == null) {
+            return;
+        }
+        this.baseSequence = Integer.parseInt(seq);
+        this.baseEpoch = find(value, EPOCH);
+        this.base = value;
+
+        // Always apply a new snapshot, even if a restarted publisher reused
+        // the sequence number of the one we applied last
+        this.appliedBase = -1;
+
+        // Apply any delta that was waiting on this snapshot
+        if (this.pending != null) {
+            recv(this.pending);
         }
     }
 
     /**
-     * Publish this table to all subscribers.
+     * Publish this table to all subscribers. If the table is rate limited and
+     * was sent too recently, the send is deferred until the period ends.
      *
      * @throws IllegalStateException Thrown if the table is not writable (i.e.
      * is subscribed)
      */
-    public void send() throws IllegalStateException {
+    public synchronized void send() throws IllegalStateException {
         throwIfNotWritable();
+        long now = System.currentTimeMillis();
+        if (now < this.lastSend + this.window) {
+            // Sent too recently; the scheduler sends the latest contents
+            // when the period ends
+            if (!this.sendHeld) {
+                this.sendHeld = true;
+                DotNetTables.schedule();
+            }
+            return;
+        }
+        this.sendHeld = false;
         setValue(UPDATE_INTERVAL, getInterval());
-        DotNetTables.push(name, HMtoSA(data));
+        this.changed = false;
+        this.lastSend = now;
+        this.sequence++;
+        this.sends++;
+        if (this.delta) {
+            sendDelta();
+        } else {
+            sendFull(name, false);
+        }
+        this.version++;
+        if (this.tracking) {
+            this.snapshot = new Snapshot(this);
+        }
+        this.record(now);
 
         // Dispatch our callback, if any
-        if (changeCallback != null) {
-            changeCallback.changed(this);
+        this.dispatchChanged();
+    }
+
+    /**
+     * Called by the publishing scheduler. Sends this table if its interval has
+     * elapsed and it has changed, if a heartbeat is due, or if a send deferred
+     * by the rate limit is due.
+     *
+     * @param now The current time, in milliseconds
+     * @return The time this table should next be checked, in milliseconds. 0
+     * if this table is not scheduled.
+     */
+    synchronized long sendIfDue(long now) {
+        if (this.sendHeld) {
+            this.send();
+        }
+        long next = 0;
+        if (this.updateInterval > 0) {
+            if (now >= this.nextCheck) {
+                // Allow half an interval of slack so scheduling jitter doesn't
+                // push heartbeats out by a whole extra interval
+                long age = now - this.lastSend + this.updateInterval / 2;
+                if (this.changed || age >= (long) this.updateInterval * HEARTBEAT_FACTOR) {
+                    this.send();
+                }
+
+                // Keep a fixed rate, but don't try to catch up on missed checks
+                this.nextCheck += this.updateInterval;
+                if (this.nextCheck <= now) {
+                    this.nextCheck = now + this.updateInterval;
+                }
+            }
+            next = this.nextCheck;
+        }
+        if (this.sendHeld) {
+            // A send deferred by the rate limit
+            long due = this.lastSend + this.window;
+            if (next == 0 || due < next) {
+                next = due;
+            }
         }
+        return next;
     }
 
-    private StringArray HMtoSA(Hashtable data) {
-        StringArray out = new StringArray();
+    private void sendFull(String entry, boolean tagged) {
+        Packet packet = new Packet(data.size() + slots.size() + (tagged ? 1 : 0));
+        if (tagged) {
+            packet.add(EPOCH, this.epoch);
+        }
         for (Enumeration it = data.keys(); it.hasMoreElements();) {
-            String key = (String) it.nextElement();
-            out.add(key);
+            pack(packet, (String) it.nextElement());
+        }
+        for (Enumeration it = slots.keys(); it.hasMoreElements();) {
+            pack(packet, (String) it.nextElement());
+        }
+        publish(entry, packet, tagged);
+    }
+
+    private void sendDelta() {
+        // Publish a new snapshot when the deltas are no longer much smaller
+        int size = data.size() + slots.size();
+        if (this.baseSequence < 0 || (dirty.size() + removed.size()) * 2 > size) {
+            sendFull(name + BASE_SUFFIX, true);
+            this.baseSequence = this.sequence;
+            dirty.clear();
+            removed.clear();
+        }
+
+        // Deltas are cumulative since the snapshot, so subscribers only ever
+        // need the snapshot and the latest delta
+        Packet packet = new Packet(dirty.size() + removed.size() + 2);
+        for (Enumeration it = dirty.keys(); it.hasMoreElements();) {
+            pack(packet, (String) it.nextElement());
+        }
+        for (Enumeration it = removed.keys(); it.hasMoreElements();) {
+            packet.add(REMOVED, (String) it.nextElement());
+        }
+        packet.add(BASE, Integer.toString(this.baseSequence));
+        packet.add(EPOCH, this.epoch);
+        publish(name, packet, true);
+    }
+
+    /**
+     * Add the current value of the specified key to an outgoing packet
+     */
+    private void pack(Packet packet, String key) {
+        String value = (String) data.get(key);
+        if (value != null) {
+            packet.add(key, value);
+            return;
         }
+        int slot = ((Integer) slots.get(key)).intValue();
+        if (!this.typed && !this.compact) {
+            packet.add(key, format(slot));
+        } else if (types[slot] == INT) {
+            packet.add(TYPE_INT, key, numbers[slot]);
+        } else if (types[slot] == BOOLEAN) {
+            packet.add(TYPE_BOOLEAN, key, numbers[slot]);
+        } else {
+            packet.add(TYPE_DOUBLE, key, numbers[slot]);
+        }
+    }
 
-        /*Use the output list of keys as the iterator to ensure correct value ordering*/
-        int size = out.size();
-        for (int i = 0; i < size; i++) {
-            out.add((String) data.get(out.get(i)));
+    /**
+     * Push the provided packet to the named entry, split into as many segments
+     * as needed to fit the NetworkTables array size limit. Trailing segments
+     * are published first so that subscribers usually complete the set when
+     * segment 0 arrives.
+     */
+    private void publish(String entry, Packet packet, boolean tagged) {
+        if (this.compact) {
+            publishCompact(entry, packet, tagged);
+            return;
+        }
+        int strings = Math.max(1, (packet.pairs + SEGMENT_PAIRS - 1) / SEGMENT_PAIRS);
+        int values = (packet.count + SEGMENT_NUMBERS - 1) / SEGMENT_NUMBERS;
+        if (strings + values <= 1) {
+            DotNetTables.push(name, entry, segment(packet, 0, packet.pairs, tagged ? 1 : 0, 0));
+            return;
+        }
+        for (int i = values - 1; i >= 0; i--) {
+            int offset = i * SEGMENT_NUMBERS;
+            int length = Math.min(SEGMENT_NUMBERS, packet.count - offset);
+            NumberArray out = new NumberArray();
+            out.setSize(length + NUMBER_HEADER);
+            out.set(0, this.sequence);
+            out.set(1, strings);
+            out.set(2, values);
+            for (int j = 0; j < length; j++) {
+                out.set(NUMBER_HEADER + j, packet.numbers[offset + j]);
+            }
+            DotNetTables.push(name, entry + NUMBER_SUFFIX + i, out);
+        }
+        for (int i = strings - 1; i >= 0; i--) {
+            int offset = i * SEGMENT_PAIRS;
+            int length = Math.min(SEGMENT_PAIRS, packet.pairs - offset);
+            String key = (i == 0) ? entry : entry + SEGMENT_SUFFIX + i;
+            DotNetTables.push(name, key, segment(packet, offset, length, strings, values));
+        }
+    }
+
+    /**
+     * Push the provided packet to the named entry in the compact encoding.
+     * Dictionary entries holding new keys are published first, so subscribers
+     * usually know every key by the time the send arrives.
+     */
+    private void publishCompact(String entry, Packet packet, boolean tagged) {
+        if (tagged) {
+            packet.add(SEQUENCE, Integer.toString(this.sequence));
+        }
+        StringArray out = this.dictionary.encode(packet.keys, packet.values, packet.pairs, packet.numbers, packet.count);
+        int first = this.dictionary.unpublished();
+        if (first >= 0) {
+            int entries = this.dictionary.entries();
+            for (int i = first; i < entries; i++) {
+                DotNetTables.push(name, name + KEYS_SUFFIX + i, this.dictionary.entry(i));
+            }
+            this.dictionary.markPublished();
+        }
+        DotNetTables.push(name, entry, out);
+    }
+
+    /**
+     * Pack a range of key-value pairs into a StringArray (keys first, then
+     * values)
+     *
+     * @param strings The number of StringArray segments in the send. 0 omits
+     * the header entirely, 1 (with no NumberArray segments) includes only the
+     * sequence number.
+     * @param values The number of NumberArray segments in the send
+     */
+    private StringArray segment(Packet packet, int offset, int length, int strings, int values) {
+        int headers = (strings + values > 1) ? 3 : strings;
+        int size = length + headers;
+        StringArray out = new StringArray();
+        out.setSize(size * 2);
+        for (int i = 0; i < length; i++) {
+            out.set(i, packet.keys[offset + i]);
+            out.set(size + i, packet.values[offset + i]);
+        }
+        if (headers > 0) {
+            out.set(length, SEQUENCE);
+            out.set(size + length, Integer.toString(this.sequence));
+        }
+        if (headers > 1) {
+            out.set(length + 1, SEGMENTS);
+            out.set(size + length + 1, Integer.toString(strings));
+            out.set(length + 2, NUMBERS);
+            out.set(size + length + 2, Integer.toString(values));
         }
         return out;
     }
 
-    private Hashtable SAtoHM(StringArray data) throws ArrayIndexOutOfBoundsException {
-        Hashtable out;
-        out = new Hashtable();
-        if (data.size() % 2 != 0) {
-            throw new ArrayIndexOutOfBoundsException("StringArray contains an odd number of elements");
+    /**
+     * Force the next delta-mode send() to publish a full snapshot
+     */
+    private void rebase() {
+        this.baseSequence = -1;
+        dirty.clear();
+        removed.clear();
+    }
+
+    /**
+     * Apply the key-value pairs of a received send to the local data. Typed
+     * keys take their values, in order, from the NumberArray segments that
+     * follow the StringArray segments. Existing keys are updated in place so a
+     * steady stream of updates with the same keys does not allocate.
+     *
+     * @param full True if the send replaces the table contents. Keys missing
+     * from the send are removed.
+     */
+    private void unpack(ArrayData[] parts, boolean full) throws ArrayIndexOutOfBoundsException {
+        int applied = 0;
+        int next = 0;
+        int offset = NUMBER_HEADER;
+        for (int j = 0; j < parts.length && parts[j] instanceof StringArray; j++) {
+            StringArray part = (StringArray) parts[j];
+            if (part.size() % 2 != 0) {
+                throw new ArrayIndexOutOfBoundsException("StringArray contains an odd number of elements");
+            }
+            int setSize = part.size() / 2;
+            for (int i = 0; i < setSize; i++) {
+                String key = part.get(i);
+                String value = part.get(i + setSize);
+                byte type = typeOf(key);
+                if (type != 0) {
+                    while (offset >= parts[next].size() || !(parts[next] instanceof NumberArray)) {
+                        next++;
+                        offset = NUMBER_HEADER;
+                    }
+                    data.remove(value);
+                    store(value, ((NumberArray) parts[next]).get(offset++), type);
+                    applied++;
+                } else if (key.equals(REMOVED)) {
+                    data.remove(value);
+                    release(value);
+                } else if (!key.equals(SEQUENCE) && !key.equals(BASE) && !key.equals(EPOCH)
+                        && !key.equals(SEGMENTS) && !key.equals(NUMBERS)) {
+                    release(key);
+                    data.put(key, value);
+                    applied++;
+                }
+            }
+        }
+
+        // Sweep out keys that were dropped since the last full update
+        if (full && data.size() + slots.size() != applied) {
+            Hashtable keep = new Hashtable();
+            for (int j = 0; j < parts.length && parts[j] instanceof StringArray; j++) {
+                StringArray part = (StringArray) parts[j];
+                int setSize = part.size() / 2;
+                for (int i = 0; i < setSize; i++) {
+                    String key = part.get(i);
+                    keep.put((typeOf(key) != 0) ? part.get(i + setSize) : key, key);
+                }
+            }
+            for (Enumeration it = keys(); it.hasMoreElements();) {
+                String key = (String) it.nextElement();
+                if (!keep.containsKey(key)) {
+                    data.remove(key);
+                    release(key);
+                }
+            }
+        }
+    }
+
+    private static byte typeOf(String key) {
+        if (key.equals(TYPE_DOUBLE)) {
+            return DOUBLE;
+        } else if (key.equals(TYPE_INT)) {
+            return INT;
+        } else if (key.equals(TYPE_BOOLEAN)) {
+            return BOOLEAN;
         }
+        return 0;
+    }
+
+    /**
+     * @return True if both strings are null or equal
+     */
+    private static boolean same(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    private static String find(ArrayData[] data, String key) {
+        for (int j = 0; j < data.length; j++) {
+            if (data[j] instanceof StringArray) {
+                String value = find((StringArray) data[j], key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String find(StringArray data, String key) {
         int setSize = data.size() / 2;
         for (int i = 0; i < setSize; i++) {
-            out.put(data.get(i), data.get(i + setSize));
+            if (data.get(i).equals(key)) {
+                return data.get(i + setSize);
+            }
         }
-        return out;
+        return null;
     }
 
     /**
      * Update with new data from a remote subscribed table
      *
      * @param itable The underlying NetworkTable table
-     * @param key The array name -- must match our name to trigger an update
+     * @param key The array name -- must match our name (or one of our segment
+     * or snapshot entry names) to trigger an update
      * @param val The new or updated array
      * @param isNew True if the array did not previous exist
      */
     // In newer java we would annote with @Override, but not for the cRIO
     public void valueChanged(ITable itable, String key, Object val, boolean isNew) {
         // Skip updates for other tables
-        if (!this.name.equals(key)) {
+        if (!key.startsWith(this.name)) {
             return;
         }
+        synchronized (this.receiving) {
+            this.accept(itable, key, null);
+        }
+    }
+
+    /**
+     * Apply a received entry. Must be called with the receiving lock held.
+     *
+     * @param itable The table to read the entry's value from, or null to apply
+     * a value held by the rate limit
+     * @param key The entry name
+     * @param value The held value, if itable is null
+     */
+    private void accept(ITable itable, String key, ArrayData value) {
+        int pos = this.name.length();
+        Segments segments = this.updates;
+        if (key.startsWith(BASE_SUFFIX, pos)) {
+            segments = this.snapshots;
+            pos += BASE_SUFFIX.length();
+        }
+        boolean numeric = false;
+        boolean keys = false;
+        int index = 0;
+        if (pos < key.length()) {
+            if (key.startsWith(NUMBER_SUFFIX, pos)) {
+                numeric = true;
+                pos += NUMBER_SUFFIX.length();
+            } else if (key.startsWith(KEYS_SUFFIX, pos) && segments == this.updates) {
+                keys = true;
+                pos += KEYS_SUFFIX.length();
+            } else if (key.startsWith(SEGMENT_SUFFIX, pos)) {
+                pos += SEGMENT_SUFFIX.length();
+            } else {
+                return;
+            }
+            index = parseIndex(key, pos);
+            if (index < 0) {
+                return;
+            }
+        }
+        if (itable != null) {
+            value = receive(itable, key, segments, numeric);
+            if (value == null || this.defer(key, value)) {
+                return;
+            }
+        }
 
-        // Store the new data
-        StringArray value = new StringArray();
-        itable.retrieveValue(key, value);
-        recv(value);
+        if (keys) {
+            recvKeys(index, (StringArray) value);
+            return;
+        }
+
+        // Read the segment header
+        int seq;
+        int count;
+        if (numeric) {
+            NumberArray numbers = (NumberArray) value;
+            if (numbers.size() < NUMBER_HEADER) {
+                return;
+            }
+            seq = (int) numbers.get(0);
+            index += (int) numbers.get(1);
+            count = (int) numbers.get(1) + (int) numbers.get(2);
+        } else {
+            StringArray strings = (StringArray) value;
+            String segmentCount = find(strings, SEGMENTS);
+            if (segmentCount == null) {
+                // Unsegmented sends arrive whole
+                if (index == 0) {
+                    ArrayData[] parts = (segments == this.snapshots) ? new ArrayData[1] : this.whole;
+                    parts[0] = strings;
+                    dispatch(segments, parts);
+                }
+                return;
+            }
+            String numberCount = find(strings, NUMBERS);
+            seq = Integer.parseInt(find(strings, SEQUENCE));
+            count = Integer.parseInt(segmentCount);
+            if (numberCount != null) {
+                count += Integer.parseInt(numberCount);
+            }
+        }
+
+        // Store the new data, once all segments of the send are present
+        ArrayData[] parts = segments.offer(index, value, seq, count);
+        if (parts != null) {
+            dispatch(segments, parts);
+        }
+    }
+
+    /**
+     * Hold a received entry for the next delivery, if this table is rate
+     * limited. Must be called with the receiving lock held.
+     *
+     * @return True if the entry was held
+     */
+    private boolean defer(String key, ArrayData value) {
+        // Once anything is held, later entries wait behind it so they are
+        // applied in order
+        if (this.window <= 0 && this.deferred.isEmpty()) {
+            return false;
+        }
+
+        // Held updates still count as updates for staleness
+        this.lastUpdate = System.currentTimeMillis();
+        boolean idle = this.deferred.isEmpty();
+        this.deferred.put(key, value);
+        if (idle) {
+            DotNetTables.schedule();
+        }
+        return true;
+    }
+
+    /**
+     * Called by the publishing scheduler. Applies the entries held by the rate
+     * limit, if the period since the last delivery has ended. Callbacks are
+     * dispatched after the receiving lock is released, so that they may
+     * publish without waiting on the NetworkTables thread.
+     *
+     * @param now The current time, in milliseconds
+     * @return The time this table should next be checked, in milliseconds. 0
+     * if no entries are held.
+     */
+    long deliverIfDue(long now) {
+        int held;
+        synchronized (this.receiving) {
+            if (this.deferred.isEmpty()) {
+                return 0;
+            }
+            long due = this.lastDelivery + this.window;
+            if (now < due) {
+                return due;
+            }
+            this.lastDelivery = now;
+            this.delivering = Thread.currentThread();
+            try {
+                // Each key holds only its latest value. Sends whose segments,
+                // snapshot or dictionary entries are applied out of order
+                // wait for them as they would on the network.
+                for (Enumeration it = this.deferred.keys(); it.hasMoreElements();) {
+                    String key = (String) it.nextElement();
+                    this.accept(null, key, (ArrayData) this.deferred.get(key));
+                }
+            } finally {
+                this.deferred.clear();
+                this.delivering = null;
+            }
+            held = this.heldEvents;
+            this.heldEvents = 0;
+        }
+        if ((held & DotNetTables.STALE) != 0) {
+            this.dispatchStale();
+        }
+        if ((held & DotNetTables.CHANGED) != 0) {
+            this.dispatchChanged();
+        }
+        return 0;
+    }
+
+    /**
+     * Retrieve the value of the specified entry into its receive buffer.
+     * Update buffers are reused across sends; snapshot buffers are held until
+     * the next snapshot and so are always fresh.
+     *
+     * @return The buffer, or null if it already holds the entry's value. The
+     * server re-sends every entry to a client that reconnects, and entries
+     * that did not change while it was disconnected are not applied again.
+     */
+    private ArrayData receive(ITable itable, String key, Segments segments, boolean numeric) {
+        if (segments == this.snapshots) {
+            ArrayData buffer = numeric ? (ArrayData) new NumberArray() : new StringArray();
+            itable.retrieveValue(key, buffer);
+            return buffer;
+        }
+        Received received = (Received) buffers.get(key);
+        if (received == null) {
+            received = new Received(key, numeric);
+            buffers.put(key, received);
+        }
+
+        // Every send bumps the entry's sequence number, but a re-sent entry
+        // keeps the one we last received
+        NetworkTableEntry entry = DotNetTables.entry(received.path);
+        if (entry != null) {
+            int seq = entry.getSequenceNumber();
+            if (seq == received.sequence && received.holds(entry.getValue())) {
+                DotNetTables.skipResend();
+                return null;
+            }
+            received.sequence = seq;
+        }
+        itable.retrieveValue(key, received.buffer);
+        return received.buffer;
+    }
+
+    /**
+     * @return The non-negative decimal number at the end of the key, or -1
+     */
+    private static int parseIndex(String key, int pos) {
+        if (pos >= key.length()) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = pos; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+
+    private void dispatch(Segments segments, ArrayData[] parts) {
+        if (parts.length == 1 && CompactEncoding.isCompact((StringArray) parts[0])) {
+            StringArray payload = (StringArray) parts[0];
+            if (this.dictionary == null) {
+                this.dictionary = new CompactEncoding();
+            }
+            parts = this.dictionary.decode(payload);
+            if (parts == null) {
+                // Wait for the dictionary entries it refers to, and stop
+                // reusing the buffer it is held in
+                if (segments == this.snapshots) {
+                    this.undecodedBase = payload;
+                } else {
+                    this.undecoded = payload;
+                    this.buffers.remove(name);
+                }
+                return;
+            }
+            if (segments == this.snapshots) {
+                this.undecodedBase = null;
+            } else {
+                this.undecoded = null;
+            }
+        }
+        if (segments == this.snapshots) {
+            recvBase(parts);
+        } else {
+            recv(parts);
+        }
+    }
+
+    /**
+     * The receive buffer for an update entry, and the NetworkTables sequence
+     * number of the value it holds
+     */
+    private static class Received {
+
+        final ArrayData buffer;
+        final String path;
+        int sequence;
+
+        Received(String key, boolean numeric) {
+            this.buffer = numeric ? (ArrayData) new NumberArray() : new StringArray();
+            this.path = DotNetTables.path(key);
+            this.sequence = -1;
+        }
+
+        /**
+         * @return True if the buffer holds the provided NetworkTables array
+         * value
+         */
+        boolean holds(Object value) {
+            if (!(value instanceof Object[])) {
+                return false;
+            }
+            Object[] elements = (Object[]) value;
+            if (elements.length != buffer.size()) {
+                return false;
+            }
+            if (buffer instanceof NumberArray) {
+                NumberArray numbers = (NumberArray) buffer;
+                for (int i = 0; i < elements.length; i++) {
+                    if (!(elements[i] instanceof Double) || ((Double) elements[i]).doubleValue() != numbers.get(i)) {
+                        return false;
+                    }
+                }
+            } else {
+                StringArray strings = (StringArray) buffer;
+                for (int i = 0; i < elements.length; i++) {
+                    if (!strings.get(i).equals(elements[i])) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Store a received key dictionary entry, and decode any compact sends that
+     * were waiting on it
+     */
+    private void recvKeys(int index, StringArray names) {
+        if (this.dictionary == null) {
+            this.dictionary = new CompactEncoding();
+        }
+        this.dictionary.offer(index, names);
+        if (this.undecodedBase != null) {
+            dispatch(this.snapshots, new ArrayData[]{this.undecodedBase});
+        }
+        if (this.undecoded != null) {
+            dispatch(this.updates, new ArrayData[]{this.undecoded});
+        }
+    }
+
+    /**
+     * Outgoing key-value pairs and typed values for a single send()
+     */
+    private static class Packet {
+
+        String[] keys;
+        String[] values;
+        int pairs;
+        double[] numbers;
+        int count;
+
+        Packet(int size) {
+            keys = new String[size];
+            values = new String[size];
+            numbers = new double[size];
+        }
+
+        void add(String key, String value) {
+            if (pairs == keys.length) {
+                // Only compact mode adds pairs beyond the expected size
+                String[] newKeys = new String[pairs + 1];
+                String[] newValues = new String[pairs + 1];
+                System.arraycopy(keys, 0, newKeys, 0, pairs);
+                System.arraycopy(values, 0, newValues, 0, pairs);
+                keys = newKeys;
+                values = newValues;
+            }
+            keys[pairs] = key;
+            values[pairs] = value;
+            pairs++;
+        }
+
+        void add(String type, String key, double value) {
+            add(type, key);
+            numbers[count++] = value;
+        }
+    }
+
+    /**
+     * Reassembly buffer for the segments of a single NetworkTables entry. Holds
+     * at most one value per segment index.
+     */
+    private static class Segments {
+
+        private ArrayData[] parts = new ArrayData[0];
+        private int[] sequences = new int[0];
+        private ArrayData[] out = null;
+        private final boolean reuse;
+
+        /**
+         * @param reuse True if the array returned by offer() may be reused for
+         * the next completed send
+         */
+        Segments(boolean reuse) {
+            this.reuse = reuse;
+        }
+
+        /**
+         * @param index The segment index
+         * @param value The segment data
+         * @param seq The sequence number of the send this segment belongs to
+         * @param size The number of segments in the send
+         * @return All segments of the send, in order, if this segment completes
+         * the set. Otherwise null.
+         */
+        ArrayData[] offer(int index, ArrayData value, int seq, int size) {
+            grow(Math.max(size, index + 1));
+            parts[index] = value;
+            sequences[index] = seq;
+
+            // The set is complete when every segment is from the same send
+            for (int i = 0; i < size; i++) {
+                if (parts[i] == null || sequences[i] != seq) {
+                    return null;
+                }
+            }
+            if (!reuse || out == null || out.length != size) {
+                out = new ArrayData[size];
+            }
+            System.arraycopy(parts, 0, out, 0, size);
+            for (int i = 0; i < size; i++) {
+                parts[i] = null;
+            }
+            return out;
+        }
+
+        /**
+         * Stop reusing the array most recently returned by offer()
+         */
+        void detach() {
+            out = null;
+        }
+
+        private void grow(int size) {
+            if (size <= parts.length) {
+                return;
+            }
+            ArrayData[] newParts = new ArrayData[size];
+            int[] newSequences = new int[size];
+            System.arraycopy(parts, 0, newParts, 0, parts.length);
+            System.arraycopy(sequences, 0, newSequences, 0, sequences.length);
+            parts = newParts;
+            sequences = newSequences;
+        }
+    }
+
+    /**
+     * An immutable copy of a table's contents at one point in time. Snapshots
+     * are never modified once taken, so they may be read from any thread
+     * without locking.
+     */
+    public static final class Snapshot {
+
+        private final int version;
+        private final int size;
+        private final String[] keys;
+        private final String[] values;
+        private final double[] numbers;
+        private final byte[] types;
+
+        /**
+         * Copy the table's current contents. Must be called with the table
+         * locked.
+         */
+        private Snapshot(DotNetTable table) {
+            this.version = table.version;
+            this.size = table.data.size() + table.slots.size();
+
+            // Open addressing, at most half full
+            int capacity = 4;
+            while (capacity < this.size * 2) {
+                capacity *= 2;
+            }
+            this.keys = new String[capacity];
+            this.values = new String[capacity];
+            this.numbers = new double[capacity];
+            this.types = new byte[capacity];
+            for (Enumeration it = table.data.keys(); it.hasMoreElements();) {
+                String key = (String) it.nextElement();
+                int i = this.slot(key);
+                this.keys[i] = key;
+                this.values[i] = (String) table.data.get(key);
+            }
+            for (Enumeration it = table.slots.keys(); it.hasMoreElements();) {
+                String key = (String) it.nextElement();
+                int slot = ((Integer) table.slots.get(key)).intValue();
+                int i = this.slot(key);
+                this.keys[i] = key;
+                this.numbers[i] = table.numbers[slot];
+                this.types[i] = table.types[slot];
+            }
+        }
+
+        /**
+         * @return The position of the key, or of the empty position where it
+         * belongs
+         */
+        private int slot(String key) {
+            int mask = this.keys.length - 1;
+            int i = key.hashCode() & mask;
+            while (this.keys[i] != null && !this.keys[i].equals(key)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /**
+         * @return The table version this snapshot was taken at. Versions
+         * increase by one with each update received or sent.
+         */
+        public int version() {
+            return this.version;
+        }
+
+        /**
+         * @return The number of keys in this snapshot
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * @return A set of all keys in this snapshot
+         */
+        public Enumeration keys() {
+            return new Enumeration() {
+                private int next = advance(0);
+
+                private int advance(int i) {
+                    while (i < keys.length && keys[i] == null) {
+                        i++;
+                    }
+                    return i;
+                }
+
+                public boolean hasMoreElements() {
+                    return this.next < keys.length;
+                }
+
+                public Object nextElement() {
+                    if (this.next >= keys.length) {
+                        throw new java.util.NoSuchElementException();
+                    }
+                    String key = keys[this.next];
+                    this.next = advance(this.next + 1);
+                    return key;
+                }
+            };
+        }
+
+        /**
+         * @param key The key in question
+         * @return True if the key exists in this snapshot, otherwise false
+         */
+        public boolean exists(String key) {
+            return this.keys[this.slot(key)] != null;
+        }
+
+        /**
+         * @param key The key of the value to be retrieved
+         * @return The related value, or null if the key does not exist.
+         * Numeric and boolean values are formatted as strings.
+         */
+        public String getValue(String key) {
+            int i = this.slot(key);
+            if (this.keys[i] == null || this.types[i] == 0) {
+                return this.values[i];
+            }
+            return format(this.types[i], this.numbers[i]);
+        }
+
+        /**
+         * @param key The key of the value to be retrieved
+         * @return The related value
+         */
+        public double getDouble(String key) {
+            int i = this.slot(key);
+            if (this.types[i] != 0) {
+                return this.numbers[i];
+            }
+            return Double.parseDouble(this.values[i]);
+        }
+
+        /**
+         * @param key The key of the value to be retrieved
+         * @return The related value
+         */
+        public int getInt(String key) {
+            int i = this.slot(key);
+            if (this.types[i] != 0) {
+                return (int) this.numbers[i];
+            }
+            return Integer.parseInt(this.values[i]);
+        }
+
+        /**
+         * @param key The key of the value to be retrieved
+         * @return The related value
+         */
+        public boolean getBoolean(String key) {
+            int i = this.slot(key);
+            if (this.types[i] != 0) {
+                return this.numbers[i] != 0;
+            }
+            return "true".equals(this.values[i]);
+        }
     }
 
     /**
@@ -1,10 +1,22 @@
 package org.ingrahamrobotics.dotnettables;
 
 import edu.wpi.first.wpilibj.networktables.NetworkTable;
+import edu.wpi.first.wpilibj.networktables.NetworkTableProvider;
+import edu.wpi.first.wpilibj.networktables2.NetworkTableEntry;
+import edu.wpi.first.wpilibj.networktables2.NetworkTableNode;
+import edu.wpi.first.wpilibj.networktables2.client.NetworkTableClient;
+import edu.wpi.first.wpilibj.networktables2.server.NetworkTableServer;
+import edu.wpi.first.wpilibj.networktables2.stream.SocketStreams;
+import edu.wpi.first.wpilibj.networktables2.type.NetworkTableEntryTypeManager;
+import edu.wpi.first.wpilibj.tables.ITable;
+import edu.wpi.first.wpilibj.tables.ITableListener;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 // I'm aware this is obsolete, but it's also compatible with the cRIO's squawk JVM
-import java.util.Hashtable;
 import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
 
 /**
  * A wrapper for FRC NetworkTables that provides enforced directionality, a
@@ -22,23 +34,128 @@ public class DotNetTables {
      * The table name used for the underlying NetworkTable
      */
     public static final String TABLE_NAME = "DotNet";
-    private static NetworkTable nt_table;
+    /**
+     * The full NetworkTables name of the underlying table, including the
+     * trailing separator
+     */
+    private static final String PATH = NetworkTable.PATH_SEPARATOR + TABLE_NAME + NetworkTable.PATH_SEPARATOR;
+    /**
+     * The default longest time an update waits to be written to the network,
+     * in milliseconds
+     */
+    public static final int DEFAULT_LATENCY = 5;
+    /**
+     * The keep-alive delay used by NetworkTables clients, in milliseconds
+     */
+    private static final long CLIENT_KEEP_ALIVE = 1000;
+    private static volatile NetworkTable nt_table;
+    private static volatile NetworkTableNode node = null;
     private static boolean client = false;
-    private static boolean connected = false;
-    private static Hashtable tables;
+    private static boolean relay = false;
+    private static String address = null;
+    private static FlushThreadManager writes = null;
+    private static volatile boolean connected = false;
+    /**
+     * Registered tables. Replaced as a whole when a table is added or dropped,
+     * under syncLock, so lookups never lock.
+     */
+    private static volatile Registry tables = Registry.EMPTY;
     private static final Object syncLock = new Object();
+    private static final Dispatcher dispatcher = new Dispatcher();
+    /**
+     * The route of each entry name the dispatcher has seen, keyed by the name
+     * as NetworkTables passed it, so lookups do not need to build a string
+     */
+    private static final Hashtable routes = new Hashtable();
+    /**
+     * Patterns subscribed with subscribeAll(), each mapped to its Pattern
+     */
+    private static final NameTrie patterns = new NameTrie();
+    /**
+     * The longest the publishing scheduler sleeps between checks, in
+     * milliseconds
+     */
+    private static final long PUBLISH_IDLE = 1000;
+    private static Thread publisher = null;
+    private static final Object publishLock = new Object();
+    private static Thread watcher = null;
+    private static final Object watchLock = new Object();
+    private static DotNetTable[] watched = new DotNetTable[8];
+    private static long[] deadlines = new long[8];
+    private static int watchCount = 0;
+    /**
+     * Callback event flags
+     */
+    static final int CHANGED = 1;
+    static final int STALE = 2;
+    private static volatile boolean async = false;
+    private static Thread callbacks = null;
+    private static final Object callbackLock = new Object();
+    private static DotNetTable[] mailbox = new DotNetTable[8];
+    private static int mailboxHead = 0;
+    private static int mailboxCount = 0;
+    private static long conflated = 0;
+    private static long dropped = 0;
+    /**
+     * Only updated from table listeners, which NetworkTables runs with its
+     * entry store locked
+     */
+    private static long resends = 0;
+    /**
+     * The counters of each open connection
+     */
+    private static final Vector connections = new Vector();
+    private static long accepted = 0;
+    private static Thread dumper = null;
+    private static final Object dumpLock = new Object();
+    private static OutputStream dumpStream = null;
+    private static long dumpInterval = 0;
+    /**
+     * The default size of each recording buffer, in bytes
+     */
+    public static final int DEFAULT_RECORDING_BUFFER = 256 * 1024;
+    private static volatile Recorder recorder = null;
+    private static final Object recordLock = new Object();
+    /**
+     * The persistent store of each table registered with persist(). Guarded
+     * by syncLock.
+     */
+    private static final Hashtable stores = new Hashtable();
 
-    static private void init() throws IOException {
+    static private void init(int latency) throws IOException {
         synchronized (syncLock) {
-            tables = new Hashtable();
+            tables = Registry.EMPTY;
+            connections.removeAllElements();
 
             // Attempt to init the underlying NetworkTable
             try {
+                NetworkTableNode created = null;
                 try {
-                    NetworkTable.initialize();
+                    if (!client) {
+                        NetworkTable.setServerMode();
+                    }
+                    created = createNode(latency);
+                    NetworkTable.setTableProvider(new NetworkTableProvider(created));
+                    node = created;
                 } catch (IllegalStateException ex) {
+                    // NetworkTables is already running (WPILib starts it on
+                    // the robot); use it with its default write timing
+                    if (created != null) {
+                        created.close();
+                    }
+                    writes = null;
+                    node = null;
                 }
                 nt_table = NetworkTable.getTable(TABLE_NAME);
+                if (node != null) {
+                    // A single listener on the node also sees the entries of
+                    // tables named with the path separator, at any depth
+                    node.addTableListener(new NodeListener(), false);
+                } else {
+                    // Table listeners only see their own direct entries, and
+                    // the node's own listeners are not reachable
+                    nt_table.addTableListener(dispatcher);
+                }
                 connected = true;
             } catch (IOException ex) {
                 System.err.println("Unable to initialize NetworkTable: " + TABLE_NAME);
@@ -47,6 +164,33 @@ public class DotNetTables {
         }
     }
 
+    /**
+     * Create the NetworkTables node, with a write manager that flushes queued
+     * updates within the specified latency. Servers buffer each client's
+     * output separately.
+     */
+    private static NetworkTableNode createNode(int latency) throws IOException {
+        NetworkTableNode node;
+        if (client) {
+            writes = new FlushThreadManager(latency, CLIENT_KEEP_ALIVE);
+            // One set of counters follows the connection across reconnects
+            Metrics.Connection metrics = new Metrics.Connection("server " + address);
+            connections.addElement(metrics);
+            MeteredStreamFactory streams = new MeteredStreamFactory(SocketStreams.newStreamFactory(address, NetworkTable.DEFAULT_PORT), metrics);
+            NetworkTableClient c = new NetworkTableClient(streams, new NetworkTableEntryTypeManager(), writes);
+            writes.attach(c);
+            c.reconnect();
+            node = c;
+        } else {
+            writes = new FlushThreadManager(latency, 0);
+            // Buffer each client's output so a slow client cannot stall the rest
+            BufferedStreamProvider streams = new BufferedStreamProvider(SocketStreams.newStreamProvider(NetworkTable.DEFAULT_PORT));
+            node = new NetworkTableServer(streams, new NetworkTableEntryTypeManager(), writes);
+            writes.attach(node);
+        }
+        return node;
+    }
+
     /**
      * Initialize a NetworkTables server. In standard FRC usage this is done on
      * the robot. A server can both publish and subscribe to tables; server vs.
@@ -57,7 +201,24 @@ public class DotNetTables {
      * fail
      */
     static public void startServer() throws IOException {
-        init();
+        startServer(DEFAULT_LATENCY);
+    }
+
+    /**
+     * Initialize a NetworkTables server, as startServer(), with the specified
+     * write latency. Updates are written to the network as soon as they are
+     * queued, after waiting up to the latency for the rest of a burst. The
+     * latency has no effect if NetworkTables was already started elsewhere,
+     * as WPILib does on the robot.
+     *
+     * @param latency The longest an update waits to be written, in
+     * milliseconds
+     * @throws IOException Thrown if the underlying network bind() operations
+     * fail
+     */
+    static public void startServer(int latency) throws IOException {
+        init(latency);
+        restore();
     }
 
     /**
@@ -73,32 +234,99 @@ public class DotNetTables {
      * fail
      */
     static public void startClient(String IP) throws IOException {
+        startClient(IP, DEFAULT_LATENCY);
+    }
+
+    /**
+     * Initialize a NetworkTables client, as startClient(), with the specified
+     * write latency. Updates are written to the network as soon as they are
+     * queued, after waiting up to the latency for the rest of a burst.
+     *
+     * @param IP The IP address or team number of the NetworkTables server
+     * @param latency The longest an update waits to be written, in
+     * milliseconds
+     * @throws IOException Thrown if the underlying network bind() operations
+     * fail
+     */
+    static public void startClient(String IP, int latency) throws IOException {
         NetworkTable.setClientMode();
+        address = resolve(IP);
+        NetworkTable.setIPAddress(address);
+        client = true;
+        init(latency);
+        restore();
+    }
+
+    /**
+     * Initialize a NetworkTables relay, as startRelay(), with the default
+     * write latency
+     *
+     * @param IP The IP address or team number of the upstream server
+     * @throws IOException Thrown if the underlying network bind() operations
+     * fail
+     */
+    static public void startRelay(String IP) throws IOException {
+        startRelay(IP, DEFAULT_LATENCY);
+    }
+
+    /**
+     * Initialize a NetworkTables relay. A relay is a server for any number of
+     * downstream clients, and a single client of an upstream server, usually
+     * the robot. Every DotNet table published upstream is mirrored to the
+     * downstream clients, and every table published downstream is mirrored
+     * upstream, so the upstream server carries one connection however many
+     * dashboards and loggers connect to the relay. Tables can be published
+     * and subscribed in the relay process as in a server.
+     *
+     * @param IP The IP address or team number of the upstream server
+     * @param latency The longest an update waits to be written, in
+     * milliseconds, on each side of the relay
+     * @throws IOException Thrown if the underlying network bind() operations
+     * fail
+     * @throws IllegalStateException Thrown if NetworkTables was already
+     * started elsewhere, as a relay needs its own server
+     */
+    static public void startRelay(String IP, int latency) throws IOException, IllegalStateException {
+        String upstream = resolve(IP);
+        init(latency);
+        NetworkTableNode downstream = node;
+        if (downstream == null) {
+            throw new IllegalStateException("NetworkTables was already started elsewhere");
+        }
 
-        boolean ipSet = false;
+        FlushThreadManager upstreamWrites = new FlushThreadManager(latency, CLIENT_KEEP_ALIVE);
+        Metrics.Connection metrics = new Metrics.Connection("upstream " + upstream);
+        connections.addElement(metrics);
+        MeteredStreamFactory streams = new MeteredStreamFactory(SocketStreams.newStreamFactory(upstream, NetworkTable.DEFAULT_PORT), metrics);
+        NetworkTableClient c = new NetworkTableClient(streams, new NetworkTableEntryTypeManager(), upstreamWrites);
+        upstreamWrites.attach(c);
+        new Relay(c, downstream, PATH).start();
+        c.reconnect();
+        address = upstream;
+        relay = true;
+        restore();
+    }
 
+    /**
+     * @param IP An IP address or team number
+     * @return The IP address, with team numbers converted to the standard FRC
+     * robot address
+     * @throws IllegalArgumentException Thrown if the input is neither
+     */
+    private static String resolve(String IP) throws IllegalArgumentException {
         // If the input parses as a interger, assume it's a team number
         try {
-            NetworkTable.setTeam(Integer.parseInt(IP));
-            ipSet = true;
+            int team = Integer.parseInt(IP);
+            return "10." + (team / 100) + "." + (team % 100) + ".2";
         } catch (NumberFormatException ex) {
         }
 
         // This is not a complete check for a vald IP address, but we don't have regex and it's not worth much work
-        if (!ipSet) {
-            int i = IP.indexOf('.');
-            if (i > 0 && i < 4 && IP.length() >= 7) {
-                NetworkTable.setIPAddress(IP);
-                ipSet = true;
-            }
+        int i = IP.indexOf('.');
+        if (i > 0 && i < 4 && IP.length() >= 7) {
+            return IP;
         }
-
-        if (!ipSet) {
-            throw new IllegalArgumentException("Invalid IP address or team number: " + IP);
-        }
-
-        client = true;
-        init();
+        throw new IllegalArgumentException("Invalid IP address or team number: " + IP);
     }
 
     /**
@@ -109,6 +337,13 @@ public class DotNetTables {
         return client;
     }
 
+    /**
+     * @return True if this device is configured as a NetworkTables relay
+     */
+    public static boolean isRelay() {
+        return relay;
+    }
+
     /**
      * @return True if the NetworkTables connection has been successfully
      * initialized
@@ -117,6 +352,405 @@ public class DotNetTables {
         return connected;
     }
 
+    /**
+     * @return The number of updates merged into a NetworkTables entry that was
+     * already waiting to be written. Always 0 if NetworkTables was started
+     * elsewhere.
+     */
+    public static long getCoalescedWrites() {
+        FlushThreadManager manager = writes;
+        return (manager != null) ? manager.coalesced() : 0;
+    }
+
+    /**
+     * @return The number of times the write backlog was too large for a single
+     * NetworkTables write pass. Always 0 if NetworkTables was started
+     * elsewhere.
+     */
+    public static long getWriteOverflows() {
+        FlushThreadManager manager = writes;
+        return (manager != null) ? manager.overflows() : 0;
+    }
+
+    /**
+     * @return The number of received entries skipped because they held the
+     * value already applied, as when the server re-sends every entry to a
+     * reconnecting client. Always 0 if NetworkTables was started elsewhere.
+     */
+    public static long getSkippedResends() {
+        return resends;
+    }
+
+    /**
+     * Count a received entry that was skipped as a re-send
+     */
+    static void skipResend() {
+        resends++;
+    }
+
+    /**
+     * Register the counters of a client connection accepted by the server
+     *
+     * @return The counters of the connection
+     */
+    static Metrics.Connection connect() {
+        Metrics.Connection metrics;
+        synchronized (connections) {
+            accepted++;
+            metrics = new Metrics.Connection("client " + accepted);
+            connections.addElement(metrics);
+        }
+        metrics.connected();
+        return metrics;
+    }
+
+    /**
+     * Unregister the counters of a closed connection. Has no effect if they
+     * were already unregistered.
+     *
+     * @param metrics The counters of the connection
+     */
+    static void disconnect(Metrics.Connection metrics) {
+        connections.removeElement(metrics);
+    }
+
+    /**
+     * Take a snapshot of the counters of DotNetTables, each registered table
+     * and each open connection. Counting is always enabled and costs little
+     * enough to leave on; taking a snapshot copies the counters and allocates.
+     *
+     * @return The current counters
+     */
+    public static Metrics getMetrics() {
+        long now = System.currentTimeMillis();
+        DotNetTable[] list = tables.list;
+        Metrics.Table[] t = new Metrics.Table[list.length];
+        for (int i = 0; i < list.length; i++) {
+            t[i] = list[i].metrics(now);
+        }
+        Metrics.Connection[] c;
+        long clients;
+        synchronized (connections) {
+            c = new Metrics.Connection[connections.size()];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = ((Metrics.Connection) connections.elementAt(i)).copy();
+            }
+            clients = accepted;
+        }
+        FlushThreadManager manager = writes;
+        int backlog = (manager != null) ? manager.backlog() : 0;
+        return new Metrics(now, getCoalescedWrites(), getWriteOverflows(), backlog, getSkippedResends(), getConflatedCallbacks(), getDroppedCallbacks(), clients, t, c);
+    }
+
+    /**
+     * Periodically write a snapshot of the counters to a stream, as
+     * getMetrics() and Metrics.write(). The stream may be a local file or any
+     * other stream the platform provides. Dumping stops if the stream cannot
+     * be written.
+     *
+     * @param out The stream to write to, or null to stop dumping
+     * @param interval The time between snapshots, in milliseconds
+     */
+    public static void dumpMetrics(OutputStream out, int interval) {
+        if (out != null && interval <= 0) {
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        }
+        synchronized (dumpLock) {
+            dumpStream = out;
+            dumpInterval = interval;
+            if (out != null && dumper == null) {
+                dumper = new Thread(new Dumper(), "DotNetTables Metrics Thread");
+                dumper.start();
+            }
+            dumpLock.notify();
+        }
+    }
+
+    /**
+     * Keep a table's contents in persistent storage, so that they are restored
+     * when the program restarts. Call this before startServer() or
+     * startClient(): the stored contents are read now, and the table is
+     * published or subscribed and filled with them before NetworkTables
+     * starting returns. Called later, the table is created or filled
+     * immediately.
+     *
+     * From then on each change to the table is appended to the storage by a
+     * background thread, a short time after it is made; the most recent
+     * changes may be lost if the program stops abruptly. Published tables
+     * save the values set on them, and subscribed tables the values received,
+     * so a subscribed table of tuning values keeps the last values sent by
+     * the dashboard until the dashboard reconnects.
+     *
+     * @param name The table name
+     * @param published True to publish the table, false to subscribe to it
+     * @param storage The storage for the table's contents
+     * @throws IOException Thrown if the storage cannot be read
+     * @throws IllegalStateException Thrown if the table is already persistent
+     */
+    public static void persist(String name, boolean published, Storage storage) throws IOException, IllegalStateException {
+        PersistentStore store = new PersistentStore(name, published, storage);
+        DotNetTable table;
+        synchronized (syncLock) {
+            if (stores.containsKey(name)) {
+                throw new IllegalStateException("Table already persistent: " + name);
+            }
+            stores.put(name, store);
+            table = tables.get(name);
+            if (table != null) {
+                store.attach(table);
+            }
+        }
+        if (table == null && isConnected()) {
+            getTable(name, published, DotNetTable.PRIORITY_NORMAL);
+        } else if (table != null && table.isWritable()) {
+            table.send();
+        }
+    }
+
+    /**
+     * Create each persistent table, with its stored contents
+     */
+    private static void restore() {
+        PersistentStore[] list;
+        synchronized (syncLock) {
+            list = new PersistentStore[stores.size()];
+            int i = 0;
+            for (Enumeration it = stores.elements(); it.hasMoreElements();) {
+                list[i++] = (PersistentStore) it.nextElement();
+            }
+        }
+        for (int i = 0; i < list.length; i++) {
+            getTable(list[i].name, list[i].writable, DotNetTable.PRIORITY_NORMAL);
+        }
+    }
+
+    /**
+     * Start recording every entry sent by published tables and received for
+     * subscribed tables, as startRecording() with the default buffer size
+     *
+     * @param out The stream to write the recording to
+     */
+    public static void startRecording(OutputStream out) {
+        startRecording(out, DEFAULT_RECORDING_BUFFER);
+    }
+
+    /**
+     * Start recording every entry sent by published tables and received for
+     * subscribed tables, with the time it was sent or received, in a compact
+     * binary log that replay() can play back. The stream may be a local file
+     * or any other stream the platform provides; it is written by a
+     * background thread and closed by stopRecording().
+     *
+     * Entries are encoded into memory and never wait for the stream. If the
+     * stream falls more than a buffer behind, entries are dropped rather than
+     * delaying the caller; see getDroppedRecords().
+     *
+     * @param out The stream to write the recording to
+     * @param capacity The size of each of the two recording buffers, in
+     * bytes. Must be larger than the largest entry recorded.
+     * @throws IllegalStateException Thrown if already recording
+     */
+    public static void startRecording(OutputStream out, int capacity) throws IllegalStateException {
+        synchronized (recordLock) {
+            if (recorder != null) {
+                throw new IllegalStateException("Already recording");
+            }
+            recorder = new Recorder(out, capacity);
+        }
+    }
+
+    /**
+     * Stop recording, write the rest of the recording and close its stream.
+     * Has no effect if not recording.
+     *
+     * @throws IOException Thrown if the recording could not be written
+     */
+    public static void stopRecording() throws IOException {
+        Recorder stopped;
+        synchronized (recordLock) {
+            stopped = recorder;
+            recorder = null;
+        }
+        if (stopped != null) {
+            stopped.close();
+        }
+    }
+
+    /**
+     * @return The number of entries left out of the current recording because
+     * its stream fell behind or they held more than 255 values, or 0 if not
+     * recording
+     */
+    public static long getDroppedRecords() {
+        Recorder current = recorder;
+        return (current != null) ? current.dropped() : 0;
+    }
+
+    /**
+     * Publish every entry in a recording made by startRecording(), in order,
+     * at the pace they were recorded or faster. Entries received by the
+     * recording host are published along with those it sent, so a recording
+     * made on either end of a connection replays the same tables.
+     * NetworkTables must be started first; in server mode, clients and
+     * subscribed tables in this process see the replay as if it were live.
+     * Blocks until the recording ends.
+     *
+     * @param in The recording
+     * @param speed The replay speed, as a multiple of the recorded pace, or 0
+     * to replay as fast as possible
+     * @return The number of entries replayed
+     * @throws IOException Thrown if the recording cannot be read
+     */
+    public static long replay(InputStream in, double speed) throws IOException {
+        if (!isConnected()) {
+            throw new IllegalStateException("NetworkTable not initalized");
+        }
+        if (!(speed >= 0)) {
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+        }
+        return Recorder.replay(in, nt_table, speed);
+    }
+
+    /**
+     * @param key The name of an entry in the DotNet table
+     * @return The full NetworkTables name of the entry
+     */
+    static String path(String key) {
+        return PATH + key;
+    }
+
+    /**
+     * @param path The full NetworkTables name of an entry
+     * @return The underlying NetworkTables entry, or null if it does not exist
+     * or NetworkTables was started elsewhere
+     */
+    static NetworkTableEntry entry(String path) {
+        NetworkTableNode current = node;
+        return (current != null) ? current.getEntryStore().getEntry(path) : null;
+    }
+
+    /**
+     * @param path The full NetworkTables name of an entry
+     * @return The write lane for the entry, from the priority of the
+     * published table that owns it
+     */
+    static int laneOf(String path) {
+        if (!path.startsWith(PATH)) {
+            return FlushThreadManager.NORMAL;
+        }
+        String name = path.substring(PATH.length());
+        int i = name.indexOf(DotNetTable.SEGMENT_SUFFIX);
+        if (i >= 0) {
+            name = name.substring(0, i);
+        }
+        DotNetTable table = tables.get(name);
+        if (table == null || !table.isWritable()) {
+            return FlushThreadManager.NORMAL;
+        }
+        switch (table.getPriority()) {
+            case DotNetTable.PRIORITY_HIGH:
+                return FlushThreadManager.HIGH;
+            case DotNetTable.PRIORITY_BULK:
+                return FlushThreadManager.BULK;
+            default:
+                return FlushThreadManager.NORMAL;
+        }
+    }
+
+    /**
+     * Apply a change in table priority to entries queued from now on
+     */
+    static void reprioritize() {
+        FlushThreadManager manager = writes;
+        if (manager != null) {
+            manager.reroute();
+        }
+    }
+
+    /**
+     * Enable or disable the callback thread. When enabled, table callbacks run
+     * on a single DotNetTables thread rather than on the NetworkTables thread
+     * that received the update, so slow callbacks never delay network I/O.
+     * Each table has at most one pending dispatch; updates that arrive before
+     * it runs are conflated, and the callback sees the latest contents.
+     *
+     * @param enabled True to dispatch callbacks on the callback thread
+     */
+    public static void setAsyncCallbacks(boolean enabled) {
+        async = enabled;
+    }
+
+    /**
+     * @return True if callbacks are dispatched on the callback thread
+     */
+    public static boolean isAsyncCallbacks() {
+        return async;
+    }
+
+    /**
+     * @return The number of callback events merged into a pending dispatch
+     * for the same table
+     */
+    public static long getConflatedCallbacks() {
+        synchronized (callbackLock) {
+            return conflated;
+        }
+    }
+
+    /**
+     * @return The number of pending callback dispatches discarded because
+     * their table was dropped
+     */
+    public static long getDroppedCallbacks() {
+        synchronized (callbackLock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Queue a callback event for the callback thread, if it is enabled
+     *
+     * @param table The table whose callback should be dispatched
+     * @param event CHANGED or STALE
+     * @return False if the caller should dispatch the callback itself
+     */
+    static boolean post(DotNetTable table, int event) {
+        if (!async) {
+            return false;
+        }
+        synchronized (callbackLock) {
+            if (table.events != 0) {
+                // Already waiting; the callback will see the latest contents
+                if ((table.events & event) != 0) {
+                    conflated++;
+                }
+                table.events |= event;
+                return true;
+            }
+            table.events = event;
+
+            // Each table is queued at most once, so this only grows with the
+            // number of tables
+            if (mailboxCount == mailbox.length) {
+                DotNetTable[] larger = new DotNetTable[mailbox.length * 2];
+                for (int i = 0; i < mailboxCount; i++) {
+                    larger[i] = mailbox[(mailboxHead + i) % mailbox.length];
+                }
+                mailbox = larger;
+                mailboxHead = 0;
+            }
+            mailbox[(mailboxHead + mailboxCount) % mailbox.length] = table;
+            mailboxCount++;
+
+            if (callbacks == null) {
+                callbacks = new Thread(new Callbacks(), "DotNetTables Callback Thread");
+                callbacks.start();
+            }
+            callbackLock.notify();
+        }
+        return true;
+    }
+
     /**
      * Find the specified table in the subscribed tables list, if it exists
      *
@@ -124,13 +758,11 @@ public class DotNetTables {
      * @return The specified table, if available. NULL if no such table exists.
      */
     private static DotNetTable findTable(String name) throws IllegalArgumentException {
-        for (Enumeration it = tables.keys(); it.hasMoreElements();) {
-            String tableName = (String) it.nextElement();
-            if (tableName.equals(name)) {
-                return (DotNetTable) tables.get(tableName);
-            }
+        DotNetTable table = tables.get(name);
+        if (table == null) {
+            throw new IllegalArgumentException("No such table: " + name);
         }
-        throw new IllegalArgumentException("No such table: " + name);
+        return table;
     }
 
     /**
@@ -141,7 +773,103 @@ public class DotNetTables {
      * @return The subscribed table
      */
     public static DotNetTable subscribe(String name) {
-        return getTable(name, false);
+        return getTable(name, false, DotNetTable.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Subscribe to a table, applying its updates at most maxRateHz times per
+     * second, as subscribe() and DotNetTable.setMaxRate()
+     *
+     * @param name Name of the table to subscribe
+     * @param maxRateHz The most updates per second, or 0 for no limit
+     * @return The subscribed table
+     */
+    public static DotNetTable subscribe(String name, double maxRateHz) {
+        DotNetTable table = getTable(name, false, DotNetTable.PRIORITY_NORMAL);
+        table.setMaxRate(maxRateHz);
+        return table;
+    }
+
+    /**
+     * Subscribe to every table whose name matches the pattern, as each first
+     * receives an update. A pattern matches every name that starts with it, so
+     * "drive/" matches all tables under "drive/"; a '*' matches one or more
+     * characters other than '/'. Each matching table is subscribed with the
+     * provided change and stale callbacks, which are passed the table that
+     * changed. Where several patterns match a name, the longest applies.
+     * Tables that are already subscribed or published are left as they are.
+     *
+     * Tables named with the path separator, such as "drive/left", are only
+     * received if DotNetTables started NetworkTables itself; when WPILib has
+     * already started it, as on the robot, only top-level tables are seen.
+     *
+     * Dropping a matched table re-subscribes it on its next update while the
+     * pattern remains; call unsubscribeAll() first.
+     *
+     * @param pattern The table name pattern
+     * @param callback The callback for each matching table, or null
+     */
+    public static void subscribeAll(String pattern, DotNetTable.DotNetTableEvents callback) {
+        subscribeAll(pattern, callback, 0);
+    }
+
+    /**
+     * Subscribe to every table whose name matches the pattern, as
+     * subscribeAll(), applying each table's updates at most maxRateHz times
+     * per second, as DotNetTable.setMaxRate()
+     *
+     * @param pattern The table name pattern
+     * @param callback The callback for each matching table, or null
+     * @param maxRateHz The most updates per second, or 0 for no limit
+     */
+    public static void subscribeAll(String pattern, DotNetTable.DotNetTableEvents callback, double maxRateHz) {
+        if (!(maxRateHz >= 0)) {
+            throw new IllegalArgumentException("Invalid rate: " + maxRateHz);
+        }
+        patterns.put(pattern, new Pattern(callback, maxRateHz));
+
+        // Entries already routed nowhere may now match
+        synchronized (routes) {
+            routes.clear();
+        }
+    }
+
+    /**
+     * Stop subscribing to new tables that match a pattern. Tables already
+     * subscribed by the pattern remain subscribed.
+     *
+     * @param pattern A pattern passed to subscribeAll()
+     */
+    public static void unsubscribeAll(String pattern) {
+        patterns.remove(pattern);
+    }
+
+    /**
+     * Subscribe to a table that is not yet registered, if its name matches a
+     * subscribed pattern
+     *
+     * @return The subscribed table, or null if no pattern matches
+     */
+    private static DotNetTable attach(String name) {
+        Pattern pattern = (Pattern) patterns.match(name);
+        if (pattern == null) {
+            return null;
+        }
+        DotNetTable table;
+        try {
+            table = getTable(name, false, DotNetTable.PRIORITY_NORMAL);
+        } catch (IllegalStateException ex) {
+            // Published here since we looked
+            return null;
+        }
+        if (pattern.maxRate > 0) {
+            table.setMaxRate(pattern.maxRate);
+        }
+        if (pattern.callback != null) {
+            table.onChange(pattern.callback);
+            table.onStale(pattern.callback);
+        }
+        return table;
     }
 
     /**
@@ -151,38 +879,68 @@ public class DotNetTables {
      * @return The published table
      */
     public static DotNetTable publish(String name) {
-        return getTable(name, true);
+        return getTable(name, true, DotNetTable.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Publish a table for remote hosts with the specified write priority, as
+     * publish() and DotNetTable.setPriority()
+     *
+     * @param name Name of the table to publish
+     * @param priority DotNetTable.PRIORITY_HIGH, PRIORITY_NORMAL or
+     * PRIORITY_BULK
+     * @return The published table
+     */
+    public static DotNetTable publish(String name, int priority) {
+        DotNetTable table = getTable(name, true, priority);
+        table.setPriority(priority);
+        return table;
     }
 
     /**
      * Get a table, creating and subscribing/publishing as necessary
      *
      * @param name New or existing table name
+     * @param priority The write priority of a newly published table
      * @return The table to get/create
      */
-    private static DotNetTable getTable(String name, boolean writable) {
-        synchronized (syncLock) {
-            DotNetTable table;
-            try {
-                table = findTable(name);
-            } catch (IllegalArgumentException ex) {
-                table = new DotNetTable(name, writable);
-                tables.put(table.name(), table);
-
-                // Publish or subscribe the new table
-                if (writable) {
-                    table.send();
-                } else {
-                    nt_table.addTableListener(table);
+    private static DotNetTable getTable(String name, boolean writable, int priority) {
+        DotNetTable table = tables.get(name);
+        if (table == null) {
+            boolean created = false;
+            synchronized (syncLock) {
+                table = tables.get(name);
+                if (table == null) {
+                    table = new DotNetTable(name, writable);
+                    if (writable) {
+                        table.setPriority(priority);
+                    }
+                    PersistentStore store = (PersistentStore) stores.get(name);
+                    if (store != null) {
+                        store.attach(table);
+                    }
+                    synchronized (routes) {
+                        tables = tables.with(table);
+                        routes.clear();
+                    }
+                    created = true;
                 }
             }
 
-            // Ensure the table has the specified writable state
-            if (table.isWritable() != writable) {
-                throw new IllegalStateException("Table already exists but does not share writable state: " + name);
+            // Publish the new table; subscribed tables are fed by the
+            // dispatcher. Sending takes the NetworkTables entry store lock,
+            // which the dispatcher holds when it subscribes matched tables,
+            // so it must not be done with syncLock held.
+            if (created && writable) {
+                table.send();
             }
-            return table;
         }
+
+        // Ensure the table has the specified writable state
+        if (table.isWritable() != writable) {
+            throw new IllegalStateException("Table already exists but does not share writable state: " + name);
+        }
+        return table;
     }
 
     /**
@@ -194,8 +952,17 @@ public class DotNetTables {
         synchronized (syncLock) {
             try {
                 DotNetTable table = findTable(name);
-                nt_table.removeTableListener(table);
-                tables.remove(table);
+                synchronized (routes) {
+                    tables = tables.without(table);
+                    routes.clear();
+                }
+                unwatch(table);
+                synchronized (callbackLock) {
+                    if (table.events != 0) {
+                        table.events = 0;
+                        dropped++;
+                    }
+                }
             } catch (IllegalArgumentException ex) {
                 // Ignore invalid drop requests
             }
@@ -209,20 +976,515 @@ public class DotNetTables {
      * @param data StringArray-packed DotNetTable data
      */
     protected static void push(String name, Object data) {
-        synchronized (syncLock) {
-            if (!isConnected()) {
-                throw new IllegalStateException("NetworkTable not initalized");
+        push(name, name, data);
+    }
+
+    /**
+     * Push the provided object into the NetworkTable under an entry owned by
+     * the named table. Takes no DotNetTables locks, so different tables may
+     * be sent in parallel.
+     *
+     * @param name DotNetTable name
+     * @param key NetworkTable entry name
+     * @param data StringArray-packed DotNetTable data
+     */
+    protected static void push(String name, String key, Object data) {
+        if (!isConnected()) {
+            throw new IllegalStateException("NetworkTable not initalized");
+        }
+        DotNetTable table;
+        try {
+            table = findTable(name);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalStateException(ex.toString());
+        }
+        if (!table.isWritable()) {
+            throw new IllegalStateException("Table not writable: " + name);
+        }
+        nt_table.putValue(key, data);
+        table.encoded(data);
+        Recorder current = recorder;
+        if (current != null) {
+            current.record(key, data, false);
+        }
+    }
+
+    /**
+     * Start the shared publishing scheduler if necessary, and wake it to pick
+     * up a new or changed update interval or rate limit
+     */
+    protected static void schedule() {
+        synchronized (publishLock) {
+            if (publisher == null) {
+                publisher = new Thread(new Publisher(), "DotNetTables Publisher Thread");
+                publisher.start();
             }
-            DotNetTable table;
-            try {
-                table = findTable(name);
-            } catch (IllegalArgumentException ex) {
-                throw new IllegalStateException(ex.toString());
+            publishLock.notify();
+        }
+    }
+
+    /**
+     * Start the shared stale watcher if necessary, and add or re-sort the
+     * table in its deadline queue
+     *
+     * @param table The subscribed table to watch
+     */
+    protected static void watch(DotNetTable table) {
+        synchronized (watchLock) {
+            if (watcher == null) {
+                watcher = new Thread(new Watcher(), "DotNetTables Watcher Thread");
+                watcher.start();
+            }
+
+            int i = table.watchIndex;
+            if (i < 0) {
+                if (watchCount == watched.length) {
+                    DotNetTable[] t = new DotNetTable[watchCount * 2];
+                    long[] d = new long[watchCount * 2];
+                    System.arraycopy(watched, 0, t, 0, watchCount);
+                    System.arraycopy(deadlines, 0, d, 0, watchCount);
+                    watched = t;
+                    deadlines = d;
+                }
+                i = watchCount++;
+                watched[i] = table;
+                table.watchIndex = i;
+            }
+            deadlines[i] = table.staleDeadline();
+            sift(i);
+            watchLock.notify();
+        }
+    }
+
+    /**
+     * Remove the table from the stale watcher's deadline queue, if present
+     *
+     * @param table The table to stop watching
+     */
+    private static void unwatch(DotNetTable table) {
+        synchronized (watchLock) {
+            int i = table.watchIndex;
+            if (i < 0) {
+                return;
             }
-            if (!table.isWritable()) {
-                throw new IllegalStateException("Table not writable: " + name);
+            table.watchIndex = -1;
+            watchCount--;
+            if (i < watchCount) {
+                watched[i] = watched[watchCount];
+                deadlines[i] = deadlines[watchCount];
+                watched[i].watchIndex = i;
+                sift(i);
+            }
+            watched[watchCount] = null;
+        }
+    }
+
+    /**
+     * Restore the heap order of the deadline queue around one entry. Must be
+     * called with watchLock held.
+     */
+    private static void sift(int i) {
+        // Up toward the earliest deadline
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (deadlines[parent] <= deadlines[i]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+
+        // Down toward the latest deadline
+        while (true) {
+            int child = (2 * i) + 1;
+            if (child >= watchCount) {
+                break;
+            }
+            if (child + 1 < watchCount && deadlines[child + 1] < deadlines[child]) {
+                child++;
+            }
+            if (deadlines[i] <= deadlines[child]) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private static void swap(int a, int b) {
+        DotNetTable t = watched[a];
+        long d = deadlines[a];
+        watched[a] = watched[b];
+        deadlines[a] = deadlines[b];
+        watched[b] = t;
+        deadlines[b] = d;
+        watched[a].watchIndex = a;
+        watched[b].watchIndex = b;
+    }
+
+    /**
+     * Sends every published table with an update interval when it is due, and
+     * applies the updates held for rate-limited subscribed tables. All tables
+     * that come due together are handled in the same pass, so one thread
+     * serves every table regardless of how many there are.
+     */
+    private static class Publisher implements Runnable {
+
+        public void run() {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long next = now + PUBLISH_IDLE;
+                DotNetTable[] list = tables.list;
+                for (int i = 0; i < list.length; i++) {
+                    DotNetTable table = list[i];
+                    try {
+                        long due = table.isWritable() ? table.sendIfDue(now) : table.deliverIfDue(now);
+                        if (due > 0 && due < next) {
+                            next = due;
+                        }
+                    } catch (RuntimeException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+
+                synchronized (publishLock) {
+                    long delay = next - System.currentTimeMillis();
+                    if (delay > 0) {
+                        try {
+                            publishLock.wait(delay);
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Dispatches stale callbacks for subscribed tables. Tables are held in a
+     * queue ordered by the deadline at which they go stale. Updates only move
+     * a table's deadline later, so the queue is corrected lazily when the
+     * earliest entry comes due and receiving an update costs nothing here.
+     * Tables that go stale leave the queue until their next update.
+     */
+    private static class Watcher implements Runnable {
+
+        public void run() {
+            while (true) {
+                DotNetTable table;
+                synchronized (watchLock) {
+                    try {
+                        if (watchCount == 0) {
+                            watchLock.wait();
+                            continue;
+                        }
+                        table = watched[0];
+                        long deadline = table.staleDeadline();
+                        if (deadline < 0) {
+                            // No interval or no callback -- nothing to watch
+                            unwatch(table);
+                            continue;
+                        }
+                        if (deadline != deadlines[0]) {
+                            // Updated since it was queued
+                            deadlines[0] = deadline;
+                            sift(0);
+                            continue;
+                        }
+                        long delay = deadline - System.currentTimeMillis();
+                        if (delay >= 0) {
+                            watchLock.wait(delay + 1);
+                            continue;
+                        }
+                        unwatch(table);
+                    } catch (InterruptedException ex) {
+                        continue;
+                    }
+                }
+
+                // Dispatch outside the lock; requeue if an update raced us
+                try {
+                    if (!table.expire()) {
+                        watch(table);
+                    }
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Storage for the contents of a persistent table, such as a local file.
+     * The contents are a single sequence of bytes that is read once, appended
+     * to, and occasionally replaced.
+     */
+    public interface Storage {
+
+        /**
+         * @return A stream of the stored bytes, or null if nothing has been
+         * stored
+         * @throws IOException Thrown if the storage cannot be read
+         */
+        public InputStream read() throws IOException;
+
+        /**
+         * @return A stream that appends to the stored bytes
+         * @throws IOException Thrown if the storage cannot be written
+         */
+        public OutputStream append() throws IOException;
+
+        /**
+         * @return A stream whose bytes replace the stored bytes once it is
+         * closed. The stored bytes should be unchanged if the program stops
+         * before then.
+         * @throws IOException Thrown if the storage cannot be written
+         */
+        public OutputStream replace() throws IOException;
+    }
+
+    /**
+     * Writes a snapshot of the counters to the dump stream at each interval
+     */
+    private static class Dumper implements Runnable {
+
+        public void run() {
+            while (true) {
+                OutputStream out;
+                synchronized (dumpLock) {
+                    try {
+                        if (dumpStream == null) {
+                            dumpLock.wait();
+                            continue;
+                        }
+                        out = dumpStream;
+                        dumpLock.wait(dumpInterval);
+                        if (out != dumpStream) {
+                            // Changed or stopped while we waited
+                            continue;
+                        }
+                    } catch (InterruptedException ex) {
+                        continue;
+                    }
+                }
+
+                try {
+                    getMetrics().write(out);
+                } catch (IOException ex) {
+                    System.err.println("Unable to write metrics: " + ex);
+                    synchronized (dumpLock) {
+                        if (dumpStream == out) {
+                            dumpStream = null;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An immutable index of tables by name
+     */
+    private static final class Registry {
+
+        static final Registry EMPTY = new Registry(new DotNetTable[0]);
+        /**
+         * Every table in the registry
+         */
+        final DotNetTable[] list;
+        /**
+         * Tables by the hash of their name, with open addressing
+         */
+        private final DotNetTable[] index;
+
+        private Registry(DotNetTable[] list) {
+            this.list = list;
+            int capacity = 4;
+            while (capacity < list.length * 2) {
+                capacity *= 2;
+            }
+            this.index = new DotNetTable[capacity];
+            for (int i = 0; i < list.length; i++) {
+                this.index[this.slot(list[i].name())] = list[i];
+            }
+        }
+
+        private int slot(String name) {
+            int mask = this.index.length - 1;
+            int i = name.hashCode() & mask;
+            while (this.index[i] != null && !this.index[i].name().equals(name)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /**
+         * @return The named table, or null if it is not registered
+         */
+        DotNetTable get(String name) {
+            return this.index[this.slot(name)];
+        }
+
+        /**
+         * @return A copy of this registry with the table added
+         */
+        Registry with(DotNetTable table) {
+            DotNetTable[] larger = new DotNetTable[this.list.length + 1];
+            System.arraycopy(this.list, 0, larger, 0, this.list.length);
+            larger[this.list.length] = table;
+            return new Registry(larger);
+        }
+
+        /**
+         * @return A copy of this registry with the table removed
+         */
+        Registry without(DotNetTable table) {
+            int n = 0;
+            DotNetTable[] smaller = new DotNetTable[this.list.length - 1];
+            for (int i = 0; i < this.list.length; i++) {
+                if (this.list[i] != table) {
+                    smaller[n++] = this.list[i];
+                }
+            }
+            return new Registry(smaller);
+        }
+    }
+
+    /**
+     * Dispatches queued table callbacks in the order their tables were queued
+     */
+    private static class Callbacks implements Runnable {
+
+        public void run() {
+            while (true) {
+                DotNetTable table;
+                int events;
+                synchronized (callbackLock) {
+                    while (mailboxCount == 0) {
+                        try {
+                            callbackLock.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                    table = mailbox[mailboxHead];
+                    mailbox[mailboxHead] = null;
+                    mailboxHead = (mailboxHead + 1) % mailbox.length;
+                    mailboxCount--;
+                    events = table.events;
+                    table.events = 0;
+                }
+
+                try {
+                    if ((events & STALE) != 0) {
+                        table.fireStale();
+                    }
+                    if ((events & CHANGED) != 0) {
+                        table.fireChanged();
+                    }
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes the node's entries under the DotNet table to the dispatcher, by
+     * their full names
+     */
+    private static class NodeListener implements ITableListener {
+
+        public void valueChanged(ITable itable, String key, Object val, boolean isNew) {
+            if (key.startsWith(PATH)) {
+                dispatcher.dispatch(nt_table, key, PATH.length(), val, isNew);
+            }
+        }
+    }
+
+    /**
+     * The subscribed table that owns an entry, and the entry's name within the
+     * DotNet table
+     */
+    private static final class Route {
+
+        final DotNetTable table;
+        final String key;
+
+        Route(DotNetTable table, String key) {
+            this.table = table;
+            this.key = key;
+        }
+    }
+
+    /**
+     * The settings applied to tables subscribed by a subscribeAll() pattern
+     */
+    private static final class Pattern {
+
+        final DotNetTable.DotNetTableEvents callback;
+        final double maxRate;
+
+        Pattern(DotNetTable.DotNetTableEvents callback, double maxRate) {
+            this.callback = callback;
+            this.maxRate = maxRate;
+        }
+    }
+
+    /**
+     * Routes NetworkTable updates to the subscribed table that owns the entry.
+     * A single dispatcher is registered for all tables so the cost of each
+     * update does not depend on the number of subscribed tables.
+     */
+    private static class Dispatcher implements ITableListener {
+
+        /**
+         * Cached result for entries that do not belong to a subscribed table
+         */
+        private static final Object NONE = new Object();
+
+        // In newer java we would annote with @Override, but not for the cRIO
+        public void valueChanged(ITable itable, String key, Object val, boolean isNew) {
+            dispatch(itable, key, 0, val, isNew);
+        }
+
+        /**
+         * Route an update
+         *
+         * @param itable The DotNet table
+         * @param key The entry name as NetworkTables passed it
+         * @param offset The length of the DotNet table path at the start of
+         * the key, if any
+         */
+        void dispatch(ITable itable, String key, int offset, Object val, boolean isNew) {
+            // Cache the route for each entry, so steady-state updates do not
+            // need to split the entry name
+            Object route = routes.get(key);
+            if (route == null) {
+                // Segment and snapshot entries are named "<table>#..."
+                String relative = key.substring(offset);
+                String name = relative;
+                int i = relative.indexOf(DotNetTable.SEGMENT_SUFFIX);
+                if (i >= 0) {
+                    name = relative.substring(0, i);
+                }
+                if (tables.get(name) == null) {
+                    attach(name);
+                }
+                synchronized (routes) {
+                    DotNetTable table = tables.get(name);
+                    route = (table != null && !table.isWritable()) ? (Object) new Route(table, relative) : NONE;
+                    routes.put(key, route);
+                }
+            }
+
+            if (route != NONE) {
+                Route to = (Route) route;
+                Recorder current = recorder;
+                if (current != null) {
+                    current.record(to.key, val, true);
+                }
+                to.table.valueChanged(itable, to.key, val, isNew);
             }
-            nt_table.putValue(name, data);
         }
     }
 }
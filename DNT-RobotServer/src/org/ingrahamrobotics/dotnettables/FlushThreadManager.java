@@ -0,0 +1,414 @@
+package org.ingrahamrobotics.dotnettables;
+
+import edu.wpi.first.wpilibj.networktables2.NetworkTableEntry;
+import edu.wpi.first.wpilibj.networktables2.NetworkTableNode;
+import edu.wpi.first.wpilibj.networktables2.OutgoingEntryReceiver;
+import edu.wpi.first.wpilibj.networktables2.WriteManager;
+import edu.wpi.first.wpilibj.networktables2.thread.NTThread;
+import edu.wpi.first.wpilibj.networktables2.thread.NTThreadManager;
+import edu.wpi.first.wpilibj.networktables2.thread.PeriodicRunnable;
+import java.util.Hashtable;
+
+/**
+ * A NetworkTables thread manager that runs the write manager on demand rather
+ * than on its fixed 100 ms poll. The write thread blocks until an entry is
+ * queued, waits up to the configured latency so a burst of updates is flushed
+ * together, and then writes. An idle writer only wakes to send keep-alives.
+ *
+ * Queued entries are held here rather than in the write manager, and handed
+ * to it one pass at a time so its fixed-size queues never fill. A queued
+ * entry is sent with its latest value, so repeated updates to the same entry
+ * are coalesced and the backlog can never exceed the number of entries.
+ * Producers only append to the backlog; they never wait on network I/O.
+ *
+ * Entries are queued in one of three lanes, by the priority of the table
+ * they belong to. High priority entries are written as soon as they are
+ * queued, normal entries after the latency, and bulk entries a few at a time
+ * at a limited rate. Each pass writes from a single lane and high priority
+ * entries are written first, so they never wait behind more than one pass of
+ * lower priority entries. An entry is queued at most once, so its updates can
+ * never overtake its assignment in another lane.
+ *
+ * All other NetworkTables threads are run exactly as the default thread
+ * manager would run them.
+ *
+ * @author FRC Team 4030
+ */
+class FlushThreadManager implements NTThreadManager, OutgoingEntryReceiver {
+
+    /**
+     * Lane indexes
+     */
+    static final int HIGH = 0;
+    static final int NORMAL = 1;
+    static final int BULK = 2;
+    /**
+     * The most entries of each kind handed to the write manager per pass. Its
+     * queues hold 500 entries and write synchronously when they fill.
+     */
+    private static final int PASS_LIMIT = 499;
+    /**
+     * The most bulk entries of each kind written per pass
+     */
+    private static final int BULK_PASS = 32;
+    /**
+     * The shortest time between bulk passes, in milliseconds
+     */
+    private static final long BULK_DELAY = 20;
+    private static final Integer[] LANES = {new Integer(HIGH), new Integer(NORMAL), new Integer(BULK)};
+    private final long latency;
+    private final long keepAlive;
+    private final Object lock = new Object();
+    private WriteManager writer = null;
+    private final Lane[] lanes = {new Lane(), new Lane(), new Lane()};
+    /**
+     * The lane of each entry, by entry name. Synchronized by Hashtable.
+     */
+    private final Hashtable routes = new Hashtable();
+    /**
+     * Counters for DotNetTables.getMetrics(). Guarded by lock.
+     */
+    private long coalesced = 0;
+    private long overflows = 0;
+
+    /**
+     * @param latency The longest a queued entry waits before it is flushed, in
+     * milliseconds
+     * @param keepAlive The write manager's keep-alive delay, in milliseconds,
+     * or 0 if the node does not send keep-alives
+     */
+    FlushThreadManager(long latency, long keepAlive) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("Invalid latency: " + latency);
+        }
+        this.latency = latency;
+        this.keepAlive = keepAlive;
+    }
+
+    public NTThread newBlockingPeriodicThread(PeriodicRunnable runnable, String name) {
+        if (runnable instanceof WriteManager) {
+            this.writer = (WriteManager) runnable;
+            return new FlushThread(name);
+        }
+        return new PeriodicThread(runnable, name);
+    }
+
+    /**
+     * Route the node's outgoing entries through this manager, so that queuing
+     * an entry wakes the write thread. Must be called once the node has been
+     * constructed.
+     *
+     * @param node The node whose write manager was created by this manager
+     */
+    void attach(NetworkTableNode node) {
+        if (this.writer == null) {
+            throw new IllegalStateException("No write manager was started");
+        }
+        node.getEntryStore().setOutgoingReceiver(this);
+        if (node.isServer()) {
+            // Servers also relay entries received from their clients
+            node.getEntryStore().setIncomingReceiver(this);
+        }
+    }
+
+    /**
+     * Forget the lane of every entry, so that entries queued from now on use
+     * their table's current priority
+     */
+    void reroute() {
+        this.routes.clear();
+    }
+
+    /**
+     * @return The number of updates merged into an entry that was already
+     * queued
+     */
+    long coalesced() {
+        synchronized (this.lock) {
+            return this.coalesced;
+        }
+    }
+
+    /**
+     * @return The number of times the backlog was too large for a single
+     * write manager pass and had to be split
+     */
+    long overflows() {
+        synchronized (this.lock) {
+            return this.overflows;
+        }
+    }
+
+    /**
+     * @return The number of entries queued to be written
+     */
+    int backlog() {
+        synchronized (this.lock) {
+            int count = 0;
+            for (int i = 0; i < this.lanes.length; i++) {
+                count += this.lanes[i].assignmentCount + this.lanes[i].updateCount;
+            }
+            return count;
+        }
+    }
+
+    // The entry store calls these with its lock held, which is also held
+    // while the write manager marks sent entries clean
+    public void offerOutgoingAssignment(NetworkTableEntry entry) {
+        this.offer(entry, true);
+    }
+
+    public void offerOutgoingUpdate(NetworkTableEntry entry) {
+        this.offer(entry, false);
+    }
+
+    private void offer(NetworkTableEntry entry, boolean assignment) {
+        Integer route = (Integer) this.routes.get(entry.name);
+        if (route == null) {
+            route = LANES[DotNetTables.laneOf(entry.name)];
+            this.routes.put(entry.name, route);
+        }
+        synchronized (this.lock) {
+            if (entry.isDirty()) {
+                this.coalesced++;
+                return;
+            }
+            entry.makeDirty();
+            int index = route.intValue();
+            Lane lane = this.lanes[index];
+            boolean idle = lane.isEmpty();
+            lane.add(entry, assignment);
+            if (idle) {
+                // Wake the write thread for a new burst
+                lane.since = System.currentTimeMillis();
+                this.lock.notify();
+            } else if (index == HIGH) {
+                this.lock.notify();
+            }
+        }
+    }
+
+    /**
+     * Entries queued at one priority
+     */
+    private static class Lane {
+
+        NetworkTableEntry[] assignments = new NetworkTableEntry[16];
+        NetworkTableEntry[] updates = new NetworkTableEntry[16];
+        int assignmentCount = 0;
+        int updateCount = 0;
+        /**
+         * When the oldest entry was queued, or for the bulk lane when it was
+         * last written, in milliseconds
+         */
+        long since = 0;
+        /**
+         * True if the backlog has been split across passes
+         */
+        boolean split = false;
+
+        boolean isEmpty() {
+            return this.assignmentCount == 0 && this.updateCount == 0;
+        }
+
+        void add(NetworkTableEntry entry, boolean assignment) {
+            if (assignment) {
+                if (this.assignmentCount == this.assignments.length) {
+                    this.assignments = grow(this.assignments);
+                }
+                this.assignments[this.assignmentCount++] = entry;
+            } else {
+                if (this.updateCount == this.updates.length) {
+                    this.updates = grow(this.updates);
+                }
+                this.updates[this.updateCount++] = entry;
+            }
+        }
+
+        /**
+         * Move up to limit of the oldest queued entries of each kind into the
+         * provided arrays
+         *
+         * @return The number of entries of each kind taken, as
+         * assignments << 16 | updates
+         */
+        int take(NetworkTableEntry[] assigning, NetworkTableEntry[] updating, int limit) {
+            int a = Math.min(limit, this.assignmentCount);
+            int u = Math.min(limit, this.updateCount);
+            System.arraycopy(this.assignments, 0, assigning, 0, a);
+            System.arraycopy(this.updates, 0, updating, 0, u);
+            this.assignmentCount = shift(this.assignments, a, this.assignmentCount);
+            this.updateCount = shift(this.updates, u, this.updateCount);
+            return (a << 16) | u;
+        }
+
+        private static int shift(NetworkTableEntry[] queue, int taken, int count) {
+            int left = count - taken;
+            System.arraycopy(queue, taken, queue, 0, left);
+            for (int i = left; i < count; i++) {
+                queue[i] = null;
+            }
+            return left;
+        }
+
+        private static NetworkTableEntry[] grow(NetworkTableEntry[] queue) {
+            NetworkTableEntry[] larger = new NetworkTableEntry[queue.length * 2];
+            System.arraycopy(queue, 0, larger, 0, queue.length);
+            return larger;
+        }
+    }
+
+    /**
+     * Runs the write manager each time entries are due
+     */
+    private class FlushThread implements NTThread, Runnable {
+
+        private final Thread thread;
+        private volatile boolean run = true;
+        private final NetworkTableEntry[] assigning = new NetworkTableEntry[PASS_LIMIT];
+        private final NetworkTableEntry[] updating = new NetworkTableEntry[PASS_LIMIT];
+
+        FlushThread(String name) {
+            this.thread = new Thread(this, name);
+            this.thread.start();
+        }
+
+        public void run() {
+            while (this.run) {
+                try {
+                    int taken = 0;
+                    synchronized (lock) {
+                        int index = this.due();
+                        if (index >= 0) {
+                            Lane lane = lanes[index];
+                            taken = lane.take(this.assigning, this.updating, (index == BULK) ? BULK_PASS : PASS_LIMIT);
+                            if (index == BULK) {
+                                // Hold the rest of the bulk backlog for the
+                                // next bulk pass
+                                lane.since = System.currentTimeMillis();
+                            }
+                            if (lane.isEmpty()) {
+                                lane.split = false;
+                            } else if (index != BULK && !lane.split) {
+                                lane.split = true;
+                                overflows++;
+                            }
+                        }
+                    }
+
+                    // Idle wake-ups still run a pass, which sends keep-alives
+                    int a = taken >>> 16;
+                    int u = taken & 0xFFFF;
+                    for (int i = 0; i < a; i++) {
+                        writer.offerOutgoingAssignment(this.assigning[i]);
+                        this.assigning[i] = null;
+                    }
+                    for (int i = 0; i < u; i++) {
+                        writer.offerOutgoingUpdate(this.updating[i]);
+                        this.updating[i] = null;
+                    }
+                    this.pass();
+                } catch (InterruptedException ex) {
+                    // Expected on stop()
+                }
+            }
+        }
+
+        /**
+         * Wait until a lane is due to be written. Must be called with the
+         * lock held.
+         *
+         * @return The lane to write, or -1 if the wait ended with nothing due
+         */
+        private int due() throws InterruptedException {
+            while (true) {
+                if (!lanes[HIGH].isEmpty()) {
+                    return HIGH;
+                }
+                long now = System.currentTimeMillis();
+                long wake = Long.MAX_VALUE;
+                if (!lanes[NORMAL].isEmpty()) {
+                    long at = lanes[NORMAL].since + latency;
+                    if (now >= at) {
+                        return NORMAL;
+                    }
+                    wake = at;
+                }
+                if (!lanes[BULK].isEmpty()) {
+                    long at = lanes[BULK].since + Math.max(latency, BULK_DELAY);
+                    if (now >= at) {
+                        return BULK;
+                    }
+                    wake = Math.min(wake, at);
+                }
+                if (wake == Long.MAX_VALUE) {
+                    // Wake just after the keep-alive delay so the write
+                    // manager sees it has expired
+                    lock.wait((keepAlive > 0) ? keepAlive + 1 : 0);
+                    if (lanes[HIGH].isEmpty() && lanes[NORMAL].isEmpty() && lanes[BULK].isEmpty()) {
+                        return -1;
+                    }
+                } else {
+                    lock.wait(wake - now);
+                }
+            }
+        }
+
+        /**
+         * Run one write manager pass
+         */
+        private void pass() {
+            // The write manager ends each pass with a fixed sleep; interrupt
+            // ourselves so it returns as soon as it writes
+            Thread.currentThread().interrupt();
+            try {
+                writer.run();
+            } catch (InterruptedException ex) {
+            }
+        }
+
+        public void stop() {
+            this.run = false;
+            this.thread.interrupt();
+        }
+
+        public boolean isRunning() {
+            return this.thread.isAlive();
+        }
+    }
+
+    /**
+     * Runs a NetworkTables periodic task back-to-back until stopped, as the
+     * default thread manager does
+     */
+    private static class PeriodicThread implements NTThread, Runnable {
+
+        private final PeriodicRunnable runnable;
+        private final Thread thread;
+        private volatile boolean run = true;
+
+        PeriodicThread(PeriodicRunnable runnable, String name) {
+            this.runnable = runnable;
+            this.thread = new Thread(this, name);
+            this.thread.start();
+        }
+
+        public void run() {
+            try {
+                while (this.run) {
+                    this.runnable.run();
+                }
+            } catch (InterruptedException ex) {
+            }
+        }
+
+        public void stop() {
+            this.run = false;
+            this.thread.interrupt();
+        }
+
+        public boolean isRunning() {
+            return this.thread.isAlive();
+        }
+    }
+}
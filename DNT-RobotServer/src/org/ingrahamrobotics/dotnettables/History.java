@@ -0,0 +1,244 @@
+package org.ingrahamrobotics.dotnettables;
+
+/**
+ * A fixed-capacity time series of one key's values, kept by
+ * DotNetTable.keepHistory(). Samples are held in primitive arrays used as a
+ * ring, so recording allocates nothing and a history never grows beyond its
+ * capacity; once full, each new sample replaces the oldest.
+ *
+ * Times are in milliseconds, as System.currentTimeMillis(). Queries copy
+ * into caller-provided arrays, oldest sample first, so they allocate nothing
+ * either and may be repeated freely.
+ *
+ * @author FRC Team 4030
+ */
+public final class History {
+
+    private final long[] times;
+    private final double[] values;
+    /**
+     * The position of the oldest sample
+     */
+    private int head;
+    private int count;
+
+    /**
+     * @param capacity The most samples held
+     */
+    History(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.times = new long[capacity];
+        this.values = new double[capacity];
+        this.head = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Record a sample, replacing the oldest if the history is full
+     */
+    synchronized void add(long time, double value) {
+        // Keep samples in order if the clock is set back
+        if (this.count > 0) {
+            time = Math.max(time, this.times[this.at(this.count - 1)]);
+        }
+        int i = this.head + this.count;
+        if (this.count == this.times.length) {
+            this.head = (this.head + 1) % this.times.length;
+        } else {
+            this.count++;
+        }
+        i %= this.times.length;
+        this.times[i] = time;
+        this.values[i] = value;
+    }
+
+    /**
+     * @return The most samples held
+     */
+    public int capacity() {
+        return this.times.length;
+    }
+
+    /**
+     * @return The number of samples held
+     */
+    public synchronized int size() {
+        return this.count;
+    }
+
+    /**
+     * Discard all samples
+     */
+    public synchronized void clear() {
+        this.head = 0;
+        this.count = 0;
+    }
+
+    /**
+     * @return The time of the newest sample, or -1 if there are none
+     */
+    public synchronized long lastTime() {
+        if (this.count == 0) {
+            return -1;
+        }
+        return this.times[this.at(this.count - 1)];
+    }
+
+    /**
+     * Copy the samples taken between two times, inclusive
+     *
+     * @param from The earliest time
+     * @param to The latest time
+     * @param times Receives the time of each sample, or null
+     * @param values Receives the value of each sample
+     * @return The number of samples copied, or 0 if to is before from.
+     * Samples that do not fit in the arrays are skipped, oldest first, so the
+     * newest are always returned.
+     */
+    public synchronized int range(long from, long to, long[] times, double[] values) {
+        if (to < from) {
+            return 0;
+        }
+        int start = this.first(from);
+        int end = this.end(to);
+        start = Math.max(start, end - values.length);
+        for (int i = start; i < end; i++) {
+            int j = this.at(i);
+            if (times != null) {
+                times[i - start] = this.times[j];
+            }
+            values[i - start] = this.values[j];
+        }
+        return end - start;
+    }
+
+    /**
+     * Reduce the samples taken between two times, inclusive, to the mean of
+     * each of a number of equal periods. Periods without samples are skipped.
+     *
+     * @param from The earliest time
+     * @param to The latest time
+     * @param buckets The number of periods
+     * @param times Receives the start time of each period with samples, or
+     * null
+     * @param values Receives the mean value of each period with samples
+     * @return The number of periods copied
+     */
+    public synchronized int downsample(long from, long to, int buckets, long[] times, double[] values) {
+        if (buckets <= 0 || to < from) {
+            return 0;
+        }
+        // The span may be too wide for a long, as from 0 to Long.MAX_VALUE
+        double span = (double) to - (double) from + 1;
+        int end = this.end(to);
+        int out = 0;
+        int bucket = -1;
+        double sum = 0;
+        int n = 0;
+        for (int i = this.first(from); i < end; i++) {
+            int j = this.at(i);
+            int b = (int) (((double) this.times[j] - (double) from) * buckets / span);
+            if (b >= buckets) {
+                // Rounding at the end of a very wide span
+                b = buckets - 1;
+            }
+            if (b != bucket) {
+                if (n > 0) {
+                    out = this.emit(out, from, span, buckets, bucket, sum / n, times, values);
+                }
+                bucket = b;
+                sum = 0;
+                n = 0;
+            }
+            sum += this.values[j];
+            n++;
+        }
+        if (n > 0) {
+            out = this.emit(out, from, span, buckets, bucket, sum / n, times, values);
+        }
+        return out;
+    }
+
+    private int emit(int out, long from, double span, int buckets, int bucket, double mean, long[] times, double[] values) {
+        if (out >= values.length) {
+            return out;
+        }
+        if (times != null) {
+            times[out] = (long) (from + span * bucket / buckets);
+        }
+        values[out] = mean;
+        return out + 1;
+    }
+
+    /**
+     * @param from The earliest time
+     * @param to The latest time
+     * @return The smallest value sampled between two times, inclusive, or NaN
+     * if there are no samples
+     */
+    public synchronized double min(long from, long to) {
+        double min = Double.NaN;
+        int end = this.end(to);
+        for (int i = this.first(from); i < end; i++) {
+            double value = this.values[this.at(i)];
+            if (Double.isNaN(min) || value < min) {
+                min = value;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @param from The earliest time
+     * @param to The latest time
+     * @return The largest value sampled between two times, inclusive, or NaN
+     * if there are no samples
+     */
+    public synchronized double max(long from, long to) {
+        double max = Double.NaN;
+        int end = this.end(to);
+        for (int i = this.first(from); i < end; i++) {
+            double value = this.values[this.at(i)];
+            if (Double.isNaN(max) || value > max) {
+                max = value;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return The array position of the sample at the index, counting from
+     * the oldest
+     */
+    private int at(int index) {
+        return (this.head + index) % this.times.length;
+    }
+
+    /**
+     * @return The index after the newest sample taken at or before the time
+     */
+    private int end(long time) {
+        return (time == Long.MAX_VALUE) ? this.count : this.first(time + 1);
+    }
+
+    /**
+     * @return The index of the oldest sample taken at or after the time, or
+     * the number of samples if there is none. Samples are recorded in time
+     * order, so this is a binary search.
+     */
+    private int first(long time) {
+        int low = 0;
+        int high = this.count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.times[this.at(mid)] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
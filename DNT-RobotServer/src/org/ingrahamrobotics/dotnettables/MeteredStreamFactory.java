@@ -0,0 +1,140 @@
+package org.ingrahamrobotics.dotnettables;
+
+import edu.wpi.first.wpilibj.networktables2.stream.IOStream;
+import edu.wpi.first.wpilibj.networktables2.stream.IOStreamFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wraps a client's stream factory to count the bytes sent and received over
+ * its connection to the server, the latency of each flush, and the number of
+ * times it reconnects. Every stream the factory creates is counted against
+ * the same connection.
+ *
+ * @author FRC Team 4030
+ */
+class MeteredStreamFactory implements IOStreamFactory {
+
+    private final IOStreamFactory factory;
+    private final Metrics.Connection metrics;
+
+    /**
+     * @param factory The factory of the underlying streams
+     * @param metrics The counters of the connection
+     */
+    MeteredStreamFactory(IOStreamFactory factory, Metrics.Connection metrics) {
+        this.factory = factory;
+        this.metrics = metrics;
+    }
+
+    public IOStream createStream() throws IOException {
+        IOStream stream = this.factory.createStream();
+        if (stream == null) {
+            return null;
+        }
+        this.metrics.connected();
+        return new MeteredStream(stream, this.metrics);
+    }
+
+    /**
+     * A stream that counts the bytes passed through it
+     */
+    private static class MeteredStream extends OutputStream implements IOStream {
+
+        private final IOStream stream;
+        private final OutputStream out;
+        private final InputStream in;
+        private final Metrics.Connection metrics;
+        /**
+         * Bytes written since the last flush, and when the first of them was
+         * written
+         */
+        private int count = 0;
+        private long since = 0;
+
+        MeteredStream(IOStream stream, Metrics.Connection metrics) {
+            this.stream = stream;
+            this.out = stream.getOutputStream();
+            this.in = new MeteredInputStream(stream.getInputStream(), metrics);
+            this.metrics = metrics;
+        }
+
+        public InputStream getInputStream() {
+            return this.in;
+        }
+
+        public OutputStream getOutputStream() {
+            return this;
+        }
+
+        public void close() {
+            this.stream.close();
+        }
+
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.wrote(1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.wrote(len);
+        }
+
+        private void wrote(int len) {
+            if (this.count == 0) {
+                this.since = System.currentTimeMillis();
+            }
+            this.count += len;
+            this.metrics.queued(this.count);
+        }
+
+        public void flush() throws IOException {
+            this.out.flush();
+            if (this.count > 0) {
+                this.metrics.sent(this.count, System.currentTimeMillis() - this.since);
+                this.count = 0;
+                this.metrics.queued(0);
+            }
+        }
+    }
+
+    /**
+     * Passes input through, counting the bytes read
+     */
+    private static class MeteredInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Metrics.Connection metrics;
+
+        MeteredInputStream(InputStream in, Metrics.Connection metrics) {
+            this.in = in;
+            this.metrics = metrics;
+        }
+
+        public int read() throws IOException {
+            int b = this.in.read();
+            if (b >= 0) {
+                this.metrics.received(1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = this.in.read(b, off, len);
+            if (n > 0) {
+                this.metrics.received(n);
+            }
+            return n;
+        }
+
+        public int available() throws IOException {
+            return this.in.available();
+        }
+
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
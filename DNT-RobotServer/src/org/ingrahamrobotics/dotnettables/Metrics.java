@@ -0,0 +1,366 @@
+package org.ingrahamrobotics.dotnettables;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A snapshot of DotNetTables' counters, taken by DotNetTables.getMetrics().
+ *
+ * The counters themselves are plain fields, updated under a lock the
+ * counting thread usually holds already or takes uncontended, so counting
+ * costs a few instructions and may be left on in production. A snapshot is
+ * not taken atomically; counters read while they are being updated may be
+ * off by the update in progress.
+ *
+ * @author FRC Team 4030
+ */
+public final class Metrics {
+
+    /**
+     * The number of flush latency buckets. Bucket i counts flushes that took
+     * less than 2^i milliseconds, and more than the bucket before it; the last
+     * bucket counts every longer flush.
+     */
+    public static final int LATENCY_BUCKETS = 12;
+    private final long time;
+    private final long coalesced;
+    private final long overflows;
+    private final int backlog;
+    private final long resends;
+    private final long conflated;
+    private final long dropped;
+    private final long accepted;
+    private final Table[] tables;
+    private final Connection[] connections;
+
+    Metrics(long time, long coalesced, long overflows, int backlog, long resends, long conflated, long dropped, long accepted, Table[] tables, Connection[] connections) {
+        this.time = time;
+        this.coalesced = coalesced;
+        this.overflows = overflows;
+        this.backlog = backlog;
+        this.resends = resends;
+        this.conflated = conflated;
+        this.dropped = dropped;
+        this.accepted = accepted;
+        this.tables = tables;
+        this.connections = connections;
+    }
+
+    /**
+     * @return When the snapshot was taken, in milliseconds
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return As DotNetTables.getCoalescedWrites()
+     */
+    public long getCoalescedWrites() {
+        return this.coalesced;
+    }
+
+    /**
+     * @return As DotNetTables.getWriteOverflows()
+     */
+    public long getWriteOverflows() {
+        return this.overflows;
+    }
+
+    /**
+     * @return The number of NetworkTables entries waiting to be written. Always
+     * 0 if NetworkTables was started elsewhere.
+     */
+    public int getWriteBacklog() {
+        return this.backlog;
+    }
+
+    /**
+     * @return As DotNetTables.getSkippedResends()
+     */
+    public long getSkippedResends() {
+        return this.resends;
+    }
+
+    /**
+     * @return As DotNetTables.getConflatedCallbacks()
+     */
+    public long getConflatedCallbacks() {
+        return this.conflated;
+    }
+
+    /**
+     * @return As DotNetTables.getDroppedCallbacks()
+     */
+    public long getDroppedCallbacks() {
+        return this.dropped;
+    }
+
+    /**
+     * @return The number of client connections a server has accepted. Always
+     * 0 for clients.
+     */
+    public long getConnectionsAccepted() {
+        return this.accepted;
+    }
+
+    /**
+     * @return The counters of each registered table
+     */
+    public Table[] getTables() {
+        return this.tables;
+    }
+
+    /**
+     * @return The counters of each open connection. Empty if NetworkTables was
+     * started elsewhere.
+     */
+    public Connection[] getConnections() {
+        return this.connections;
+    }
+
+    /**
+     * Write this snapshot as text, one line per table and per connection
+     *
+     * @param out The stream to write to
+     * @throws IOException Thrown if the stream cannot be written
+     */
+    public void write(OutputStream out) throws IOException {
+        StringBuffer text = new StringBuffer();
+        text.append("metrics ").append(this.time)
+                .append(" coalesced=").append(this.coalesced)
+                .append(" overflows=").append(this.overflows)
+                .append(" backlog=").append(this.backlog)
+                .append(" resends=").append(this.resends)
+                .append(" conflated=").append(this.conflated)
+                .append(" dropped=").append(this.dropped)
+                .append(" accepted=").append(this.accepted)
+                .append('\n');
+        for (int i = 0; i < this.tables.length; i++) {
+            Table t = this.tables[i];
+            text.append(t.writable ? "published " : "subscribed ").append(t.name)
+                    .append(" sends=").append(t.sends)
+                    .append(" receives=").append(t.receives)
+                    .append(" encoded=").append(t.encoded)
+                    .append(" age=").append(t.age)
+                    .append(" callbacks=").append(t.callbacks)
+                    .append(" callback-ms=").append(t.callbackTime)
+                    .append(" callback-max-ms=").append(t.callbackMax)
+                    .append('\n');
+        }
+        for (int i = 0; i < this.connections.length; i++) {
+            Connection c = this.connections[i];
+            text.append("connection ").append(c.name)
+                    .append(" queued=").append(c.queued)
+                    .append(" in=").append(c.in)
+                    .append(" out=").append(c.out)
+                    .append(" reconnects=").append(c.getReconnects())
+                    .append(" flush-ms=");
+            for (int j = 0; j < LATENCY_BUCKETS; j++) {
+                if (j > 0) {
+                    text.append(',');
+                }
+                text.append(c.latencies[j]);
+            }
+            text.append('\n');
+        }
+        out.write(text.toString().getBytes());
+        out.flush();
+    }
+
+    /**
+     * The counters of one table
+     */
+    public static final class Table {
+
+        private final String name;
+        private final boolean writable;
+        private final long sends;
+        private final long receives;
+        private final long encoded;
+        private final long age;
+        private final long callbacks;
+        private final long callbackTime;
+        private final long callbackMax;
+
+        Table(String name, boolean writable, long sends, long receives, long encoded, long age, long callbacks, long callbackTime, long callbackMax) {
+            this.name = name;
+            this.writable = writable;
+            this.sends = sends;
+            this.receives = receives;
+            this.encoded = encoded;
+            this.age = age;
+            this.callbacks = callbacks;
+            this.callbackTime = callbackTime;
+            this.callbackMax = callbackMax;
+        }
+
+        /**
+         * @return The table name
+         */
+        public String name() {
+            return this.name;
+        }
+
+        /**
+         * @return True if the table is published
+         */
+        public boolean isWritable() {
+            return this.writable;
+        }
+
+        /**
+         * @return The number of times the table was sent
+         */
+        public long getSends() {
+            return this.sends;
+        }
+
+        /**
+         * @return The number of received updates applied to the table
+         */
+        public long getReceives() {
+            return this.receives;
+        }
+
+        /**
+         * @return The bytes of NetworkTables values encoded for the table's
+         * sends, counting one byte per character
+         */
+        public long getBytesEncoded() {
+            return this.encoded;
+        }
+
+        /**
+         * @return The milliseconds since the table was last updated, or -1 if
+         * it never was
+         */
+        public long getLastUpdateAge() {
+            return this.age;
+        }
+
+        /**
+         * @return The number of change and stale callbacks run for the table
+         */
+        public long getCallbacks() {
+            return this.callbacks;
+        }
+
+        /**
+         * @return The total time spent in the table's callbacks, in
+         * milliseconds
+         */
+        public long getCallbackTime() {
+            return this.callbackTime;
+        }
+
+        /**
+         * @return The longest time spent in one of the table's callbacks, in
+         * milliseconds
+         */
+        public long getCallbackMax() {
+            return this.callbackMax;
+        }
+    }
+
+    /**
+     * The counters of one network connection. The stream wrappers that own
+     * the connection update a live instance, with it locked, as the reading,
+     * writing and connecting threads may count at once; snapshots hold
+     * copies.
+     */
+    public static final class Connection {
+
+        private final String name;
+        private volatile long queued = 0;
+        private volatile long in = 0;
+        private volatile long out = 0;
+        private volatile long connects = 0;
+        private final long[] latencies = new long[LATENCY_BUCKETS];
+
+        Connection(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return A name for the connection, such as "client 3" on a server
+         */
+        public String name() {
+            return this.name;
+        }
+
+        /**
+         * @return The bytes written to the connection but not yet sent
+         */
+        public long getQueueDepth() {
+            return this.queued;
+        }
+
+        /**
+         * @return The bytes received over the connection
+         */
+        public long getBytesIn() {
+            return this.in;
+        }
+
+        /**
+         * @return The bytes sent over the connection
+         */
+        public long getBytesOut() {
+            return this.out;
+        }
+
+        /**
+         * @return The number of times a client re-established the connection.
+         * Always 0 on a server, where each client connection is counted
+         * separately.
+         */
+        public long getReconnects() {
+            return Math.max(0, this.connects - 1);
+        }
+
+        /**
+         * @return The number of flushes in each latency bucket, from the first
+         * byte written after the previous flush until the bytes were sent
+         */
+        public synchronized long[] getFlushLatencies() {
+            long[] copy = new long[LATENCY_BUCKETS];
+            System.arraycopy(this.latencies, 0, copy, 0, LATENCY_BUCKETS);
+            return copy;
+        }
+
+        synchronized void connected() {
+            this.connects++;
+        }
+
+        synchronized void received(int bytes) {
+            this.in += bytes;
+        }
+
+        void queued(long bytes) {
+            this.queued = bytes;
+        }
+
+        /**
+         * Count bytes sent and the latency of the flush that sent them
+         */
+        synchronized void sent(int bytes, long latency) {
+            this.out += bytes;
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS - 1 && latency >= (1L << bucket)) {
+                bucket++;
+            }
+            this.latencies[bucket]++;
+        }
+
+        synchronized Connection copy() {
+            Connection copy = new Connection(this.name);
+            copy.queued = this.queued;
+            copy.in = this.in;
+            copy.out = this.out;
+            copy.connects = this.connects;
+            System.arraycopy(this.latencies, 0, copy.latencies, 0, LATENCY_BUCKETS);
+            return copy;
+        }
+    }
+}
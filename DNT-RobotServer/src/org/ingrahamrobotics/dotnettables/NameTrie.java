@@ -0,0 +1,142 @@
+package org.ingrahamrobotics.dotnettables;
+
+/**
+ * An index of table name patterns, as a trie over their characters. Each
+ * pattern matches every name that starts with it, so "drive/" matches every
+ * table under "drive/". A '*' in a pattern matches one or more characters
+ * other than '/', so one pattern can match the same table under each of
+ * several parents. Matching a name walks the trie once per character, so its
+ * cost depends on the length of the name rather than the number of patterns.
+ *
+ * @author FRC Team 4030
+ */
+class NameTrie {
+
+    /**
+     * Matches any characters within one level of a table name
+     */
+    static final char WILDCARD = '*';
+    private static final char SEPARATOR = '/';
+    private final Node root = new Node();
+
+    /**
+     * Add a pattern, replacing the value of an existing identical pattern
+     *
+     * @param pattern The pattern
+     * @param value The value returned for names matching the pattern
+     */
+    synchronized void put(String pattern, Object value) {
+        Node node = this.root;
+        for (int i = 0; i < pattern.length(); i++) {
+            node = node.child(pattern.charAt(i), true);
+        }
+        node.value = value;
+    }
+
+    /**
+     * Remove a pattern. Names already matched are not affected.
+     *
+     * @param pattern The pattern
+     * @return The value of the removed pattern, or null if it was not present
+     */
+    synchronized Object remove(String pattern) {
+        Node node = this.root;
+        for (int i = 0; i < pattern.length() && node != null; i++) {
+            node = node.child(pattern.charAt(i), false);
+        }
+        if (node == null) {
+            return null;
+        }
+        Object value = node.value;
+        node.value = null;
+        return value;
+    }
+
+    /**
+     * @param name A table name
+     * @return The value of the longest pattern matching the name, or null if
+     * no pattern matches
+     */
+    synchronized Object match(String name) {
+        Node node = match(this.root, name, 0);
+        return (node != null) ? node.value : null;
+    }
+
+    /**
+     * @return The deepest node with a value on a path matching the name from
+     * the position onwards, or null
+     */
+    private static Node match(Node node, String name, int pos) {
+        Node best = (node.value != null) ? node : null;
+        if (node.any != null) {
+            // Try each end of the wildcard within the current level
+            for (int end = pos + 1; end <= name.length() && name.charAt(end - 1) != SEPARATOR; end++) {
+                best = deeper(best, match(node.any, name, end));
+            }
+        }
+        if (pos < name.length()) {
+            Node next = node.child(name.charAt(pos), false);
+            if (next != null) {
+                best = deeper(best, match(next, name, pos + 1));
+            }
+        }
+        return best;
+    }
+
+    private static Node deeper(Node a, Node b) {
+        if (a == null || (b != null && b.depth > a.depth)) {
+            return b;
+        }
+        return a;
+    }
+
+    /**
+     * One character of one or more patterns
+     */
+    private static class Node {
+
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        /**
+         * The child for a wildcard, or null
+         */
+        Node any = null;
+        /**
+         * The number of pattern characters leading to this node
+         */
+        int depth = 0;
+        /**
+         * The value of the pattern ending here, or null
+         */
+        Object value = null;
+
+        Node child(char c, boolean create) {
+            if (c == WILDCARD) {
+                if (this.any == null && create) {
+                    this.any = new Node();
+                    this.any.depth = this.depth + 1;
+                }
+                return this.any;
+            }
+            for (int i = 0; i < this.labels.length; i++) {
+                if (this.labels[i] == c) {
+                    return this.children[i];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            int n = this.labels.length;
+            char[] labels = new char[n + 1];
+            Node[] children = new Node[n + 1];
+            System.arraycopy(this.labels, 0, labels, 0, n);
+            System.arraycopy(this.children, 0, children, 0, n);
+            labels[n] = c;
+            children[n] = new Node();
+            children[n].depth = this.depth + 1;
+            this.labels = labels;
+            this.children = children;
+            return children[n];
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package org.ingrahamrobotics.dotnettables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Saves a table's contents to a DotNetTables.Storage as they change, and
+ * restores them into the table when it is created, so that its values
+ * survive a restart.
+ *
+ * The storage holds a log of changes, each a key with its new value or its
+ * removal, after a header of the magic number and format version. Changes
+ * are appended by a single thread shared by every store, a short time after
+ * they are made, so tables never wait on storage I/O and a key changed many
+ * times in that time is written once. Once the log has grown to several
+ * times the size of the table's contents, it is compacted by replacing it
+ * with only the current values. A log cut short by a crash is read up to the
+ * last whole record, and compacted before anything more is appended.
+ *
+ * @author FRC Team 4030
+ */
+class PersistentStore {
+
+    /**
+     * "DNTS"
+     */
+    static final int MAGIC = 0x444E5453;
+    static final byte VERSION = 1;
+    /**
+     * Record kinds other than the value types defined by DotNetTable
+     */
+    private static final byte REMOVED = 4;
+    /**
+     * The time changes are collected before they are written, in
+     * milliseconds
+     */
+    private static final long SAVE_DELAY = 100;
+    /**
+     * Logs are compacted when they are larger than both COMPACT_MIN bytes and
+     * COMPACT_FACTOR times the size of the table's contents
+     */
+    private static final long COMPACT_MIN = 64 * 1024;
+    private static final int COMPACT_FACTOR = 4;
+    private static final Object saveLock = new Object();
+    private static Thread saver = null;
+    /**
+     * Stores with changes waiting to be written
+     */
+    private static final Vector pending = new Vector();
+    final String name;
+    final boolean writable;
+    private final DotNetTables.Storage storage;
+    private volatile DotNetTable table = null;
+    /**
+     * Changed keys, and whether every key may have changed. Guarded by this
+     * store.
+     */
+    private Hashtable dirty = new Hashtable();
+    private boolean all = false;
+    private boolean queued = false;
+    /**
+     * The last value written for each key. Only used by the saving thread,
+     * once the store is attached.
+     */
+    private final Hashtable saved = new Hashtable();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(this.buffer);
+    private OutputStream log = null;
+    private long logBytes = 0;
+    private long liveBytes = 0;
+    private boolean compact = false;
+    private int pass = 0;
+
+    /**
+     * Load the stored contents of a table
+     *
+     * @param name The table name
+     * @param writable True if the table is published
+     * @param storage The storage holding the table's log
+     * @throws IOException Thrown if the storage cannot be read or does not
+     * hold a log
+     */
+    PersistentStore(String name, boolean writable, DotNetTables.Storage storage) throws IOException {
+        this.name = name;
+        this.writable = writable;
+        this.storage = storage;
+        this.load();
+    }
+
+    private void load() throws IOException {
+        InputStream in = this.storage.read();
+        if (in == null) {
+            // Nothing stored yet; start the log with a header
+            this.compact = true;
+            return;
+        }
+        try {
+            DataInputStream data = new DataInputStream(in);
+            int magic;
+            try {
+                magic = data.readInt();
+            } catch (EOFException ex) {
+                this.compact = true;
+                return;
+            }
+            if (magic != MAGIC) {
+                throw new IOException("Not a DotNetTables store: " + this.name);
+            }
+            byte version = data.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported store version: " + version);
+            }
+            this.logBytes = 5;
+            while (true) {
+                byte kind;
+                try {
+                    kind = data.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                try {
+                    String key = data.readUTF();
+                    Value value = null;
+                    if (kind == DotNetTable.STRING) {
+                        value = new Value(kind, data.readUTF(), 0);
+                    } else if (kind == DotNetTable.DOUBLE || kind == DotNetTable.INT || kind == DotNetTable.BOOLEAN) {
+                        value = new Value(kind, null, data.readDouble());
+                    } else if (kind != REMOVED) {
+                        throw new IOException("Invalid record in store: " + this.name);
+                    }
+                    this.put(key, value);
+                    this.logBytes += size(key, value);
+                } catch (EOFException ex) {
+                    // Cut short by a crash
+                    this.compact = true;
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Restore the stored contents into a newly created table, and save its
+     * changes from now on
+     */
+    void attach(DotNetTable table) {
+        for (Enumeration it = this.saved.keys(); it.hasMoreElements();) {
+            String key = (String) it.nextElement();
+            Value value = (Value) this.saved.get(key);
+            table.restore(key, value.type, value.text, value.number);
+        }
+        this.table = table;
+        table.persist(this);
+    }
+
+    /**
+     * Note a changed key, to be saved shortly. Called with the table locked.
+     *
+     * @param key The changed key, or null if any key may have changed
+     */
+    synchronized void changed(String key) {
+        if (key == null) {
+            this.all = true;
+        } else if (!this.all) {
+            this.dirty.put(key, key);
+        }
+        if (!this.queued) {
+            this.queued = true;
+            synchronized (saveLock) {
+                pending.addElement(this);
+                if (saver == null) {
+                    saver = new Thread(new Saver(), "DotNetTables Store Thread");
+                    saver.start();
+                }
+                saveLock.notify();
+            }
+        }
+    }
+
+    /**
+     * Write the changes made since the last save
+     */
+    private void save() {
+        Hashtable keys;
+        boolean everything;
+        synchronized (this) {
+            keys = this.dirty;
+            everything = this.all;
+            this.dirty = new Hashtable();
+            this.all = false;
+            this.queued = false;
+        }
+
+        this.pass++;
+        this.table.save(this, everything ? null : keys);
+        if (everything) {
+            // Keys not seen in this pass were removed
+            Vector gone = new Vector();
+            for (Enumeration it = this.saved.keys(); it.hasMoreElements();) {
+                String key = (String) it.nextElement();
+                if (((Value) this.saved.get(key)).seen != this.pass) {
+                    gone.addElement(key);
+                }
+            }
+            for (int i = 0; i < gone.size(); i++) {
+                this.removed((String) gone.elementAt(i));
+            }
+        }
+
+        try {
+            if (this.compact || (this.logBytes > COMPACT_MIN && this.logBytes > this.liveBytes * COMPACT_FACTOR)) {
+                this.rewrite();
+            } else if (this.buffer.size() > 0) {
+                if (this.log == null) {
+                    this.log = this.storage.append();
+                }
+                this.buffer.writeTo(this.log);
+                this.log.flush();
+                this.logBytes += this.buffer.size();
+            }
+        } catch (IOException ex) {
+            System.err.println("Unable to save table: " + this.name + ": " + ex);
+            // Whatever was written may be incomplete; start over next time
+            this.close();
+            this.compact = true;
+        }
+        this.buffer.reset();
+    }
+
+    /**
+     * Replace the log with the current contents
+     */
+    private void rewrite() throws IOException {
+        this.close();
+        DataOutputStream data = new DataOutputStream(this.storage.replace());
+        try {
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            for (Enumeration it = this.saved.keys(); it.hasMoreElements();) {
+                String key = (String) it.nextElement();
+                write(data, key, (Value) this.saved.get(key));
+            }
+        } finally {
+            data.close();
+        }
+        this.logBytes = data.size();
+        this.compact = false;
+    }
+
+    private void close() {
+        if (this.log != null) {
+            try {
+                this.log.close();
+            } catch (IOException ex) {
+            }
+            this.log = null;
+        }
+    }
+
+    /**
+     * Save a key's current value, if it changed. Called by the table with
+     * itself locked.
+     */
+    void saved(String key, byte type, String text, double number) {
+        Value value = (Value) this.saved.get(key);
+        if (value == null || !value.equals(type, text, number)) {
+            value = new Value(type, text, number);
+            this.put(key, value);
+            this.record(key, value);
+        }
+        value.seen = this.pass;
+    }
+
+    /**
+     * Save a key's removal, if it was saved. Called by the table with itself
+     * locked.
+     */
+    void removed(String key) {
+        if (this.saved.containsKey(key)) {
+            this.put(key, null);
+            this.record(key, null);
+        }
+    }
+
+    private void put(String key, Value value) {
+        Value old = (Value) ((value != null) ? this.saved.put(key, value) : this.saved.remove(key));
+        if (old != null) {
+            this.liveBytes -= size(key, old);
+        }
+        if (value != null) {
+            this.liveBytes += size(key, value);
+        }
+    }
+
+    private void record(String key, Value value) {
+        try {
+            write(this.out, key, value);
+        } catch (IOException ex) {
+            // Not thrown by a ByteArrayOutputStream
+        }
+    }
+
+    private static void write(DataOutputStream data, String key, Value value) throws IOException {
+        data.writeByte((value != null) ? value.type : REMOVED);
+        data.writeUTF(key);
+        if (value == null) {
+            return;
+        }
+        if (value.type == DotNetTable.STRING) {
+            data.writeUTF(value.text);
+        } else {
+            data.writeDouble(value.number);
+        }
+    }
+
+    /**
+     * @return The approximate size of a record, counting one byte per
+     * character
+     */
+    private static long size(String key, Value value) {
+        long size = 3 + key.length();
+        if (value != null) {
+            size += (value.type == DotNetTable.STRING) ? 2 + value.text.length() : 8;
+        }
+        return size;
+    }
+
+    /**
+     * A saved value
+     */
+    private static final class Value {
+
+        final byte type;
+        final String text;
+        final double number;
+        /**
+         * The last save pass that found this value in the table
+         */
+        int seen = 0;
+
+        Value(byte type, String text, double number) {
+            this.type = type;
+            this.text = text;
+            this.number = number;
+        }
+
+        boolean equals(byte type, String text, double number) {
+            if (type != this.type) {
+                return false;
+            }
+            return (type == DotNetTable.STRING) ? text.equals(this.text) : number == this.number;
+        }
+    }
+
+    /**
+     * Saves each store with changes, once they have had time to collect
+     */
+    private static class Saver implements Runnable {
+
+        public void run() {
+            while (true) {
+                PersistentStore[] stores;
+                synchronized (saveLock) {
+                    try {
+                        while (pending.isEmpty()) {
+                            saveLock.wait();
+                        }
+                    } catch (InterruptedException ex) {
+                        continue;
+                    }
+                }
+                try {
+                    Thread.sleep(SAVE_DELAY);
+                } catch (InterruptedException ex) {
+                }
+                synchronized (saveLock) {
+                    stores = new PersistentStore[pending.size()];
+                    pending.copyInto(stores);
+                    pending.removeAllElements();
+                }
+
+                for (int i = 0; i < stores.length; i++) {
+                    try {
+                        stores[i].save();
+                    } catch (RuntimeException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
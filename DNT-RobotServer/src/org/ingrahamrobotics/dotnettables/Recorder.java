@@ -0,0 +1,380 @@
+package org.ingrahamrobotics.dotnettables;
+
+import edu.wpi.first.wpilibj.networktables2.type.NumberArray;
+import edu.wpi.first.wpilibj.networktables2.type.StringArray;
+import edu.wpi.first.wpilibj.tables.ITable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Records every NetworkTables entry sent or received by DotNetTables, in a
+ * compact binary log, and replays such logs.
+ *
+ * Records are encoded into one of two pre-allocated buffers, and a writer
+ * thread streams each full or aging buffer while the other fills, so
+ * recording never waits on I/O and allocates nothing once every entry name
+ * has been seen. Records that do not fit in the buffer being filled are
+ * dropped and counted rather than waiting for the writer, as are arrays of
+ * more than the 255 values NetworkTables can carry.
+ *
+ * The log starts with a header of the magic number, the format version and
+ * the recording's start time. Each entry name is written once, as a name
+ * record assigning it an id, before the first value record that uses it.
+ * Value records hold the milliseconds since the start, which never decrease,
+ * the name id and the entry's StringArray or NumberArray values, in the
+ * encodings used by DataOutputStream.
+ *
+ * @author FRC Team 4030
+ */
+class Recorder implements Runnable {
+
+    /**
+     * "DNTR"
+     */
+    static final int MAGIC = 0x444E5452;
+    static final byte VERSION = 1;
+    /**
+     * Record kinds. Values received from the network have the RECEIVED bit
+     * set.
+     */
+    private static final byte NAME = 0;
+    private static final byte STRINGS = 1;
+    private static final byte NUMBERS = 2;
+    private static final byte RECEIVED = (byte) 0x80;
+    /**
+     * The longest a record waits in the buffer before it is written, in
+     * milliseconds
+     */
+    private static final long WRITE_DELAY = 100;
+    private static final int HEADER = 13;
+    private final OutputStream out;
+    private final Object lock = new Object();
+    private byte[] filling;
+    private byte[] draining;
+    private int count = 0;
+    private final long start;
+    private long last = 0;
+    /**
+     * The id of each recorded entry name
+     */
+    private final Hashtable ids = new Hashtable();
+    private boolean closed = false;
+    private long dropped = 0;
+    private IOException failure = null;
+    private final Thread thread;
+
+    /**
+     * Start recording
+     *
+     * @param out The stream to write the log to
+     * @param capacity The size of each buffer, in bytes
+     */
+    Recorder(OutputStream out, int capacity) {
+        if (capacity < HEADER) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.out = out;
+        this.filling = new byte[capacity];
+        this.draining = new byte[capacity];
+        this.start = System.currentTimeMillis();
+        this.writeInt(MAGIC);
+        this.filling[this.count++] = VERSION;
+        this.writeLong(this.start);
+        this.thread = new Thread(this, "DotNetTables Recorder Thread");
+        this.thread.start();
+    }
+
+    /**
+     * @return The number of records dropped because the buffer was full or
+     * the array was too long
+     */
+    long dropped() {
+        synchronized (this.lock) {
+            return this.dropped;
+        }
+    }
+
+    /**
+     * Record an entry's value. Values other than StringArray, NumberArray and
+     * the arrays of strings or numbers NetworkTables passes to its listeners
+     * are ignored.
+     *
+     * @param key The entry name, without the DotNet table path
+     * @param value The entry's value
+     * @param received True if the value was received from the network
+     */
+    void record(String key, Object value, boolean received) {
+        boolean numeric;
+        int length;
+        if (value instanceof StringArray) {
+            numeric = false;
+            length = ((StringArray) value).size();
+        } else if (value instanceof NumberArray) {
+            numeric = true;
+            length = ((NumberArray) value).size();
+        } else if (value instanceof Object[]) {
+            // Listeners are passed the entry's internal array. Only number
+            // segments are NumberArrays, which tells an empty array's type.
+            Object[] array = (Object[]) value;
+            length = array.length;
+            numeric = (length > 0) ? array[0] instanceof Double : key.indexOf(DotNetTable.NUMBER_SUFFIX) >= 0;
+            for (int i = 0; i < length; i++) {
+                if (!(numeric ? array[i] instanceof Double : array[i] instanceof String)) {
+                    return;
+                }
+            }
+        } else {
+            return;
+        }
+        if (length > 255) {
+            synchronized (this.lock) {
+                this.dropped++;
+            }
+            return;
+        }
+        int size = 8;
+        if (numeric) {
+            size += 8 * length;
+        } else {
+            for (int i = 0; i < length; i++) {
+                size += 2 + 3 * string(value, i).length();
+            }
+        }
+        byte kind = numeric ? NUMBERS : STRINGS;
+        if (received) {
+            kind |= RECEIVED;
+        }
+
+        synchronized (this.lock) {
+            if (this.closed) {
+                return;
+            }
+            Integer id = (Integer) this.ids.get(key);
+            int needed = size + ((id == null) ? 5 + 3 * key.length() : 0);
+            if (this.count + needed > this.filling.length) {
+                this.dropped++;
+                return;
+            }
+            if (id == null) {
+                id = new Integer(this.ids.size());
+                this.ids.put(key, id);
+                this.filling[this.count++] = NAME;
+                this.writeShort(id.intValue());
+                this.writeUTF(key);
+            }
+
+            // Keep times in order if the clock is set back
+            long time = Math.max(this.last, System.currentTimeMillis() - this.start);
+            this.last = time;
+            this.filling[this.count++] = kind;
+            this.writeInt((int) time);
+            this.writeShort(id.intValue());
+            this.filling[this.count++] = (byte) length;
+            for (int i = 0; i < length; i++) {
+                if (numeric) {
+                    this.writeLong(Double.doubleToLongBits(number(value, i)));
+                } else {
+                    this.writeUTF(string(value, i));
+                }
+            }
+
+            if (this.count > this.filling.length / 2) {
+                this.lock.notify();
+            }
+        }
+    }
+
+    /**
+     * Stop recording, write everything recorded and close the stream
+     *
+     * @throws IOException Thrown if the log could not be written
+     */
+    void close() throws IOException {
+        synchronized (this.lock) {
+            this.closed = true;
+            this.lock.notify();
+        }
+        try {
+            this.thread.join();
+        } catch (InterruptedException ex) {
+        }
+        this.out.close();
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                int length;
+                boolean last;
+                synchronized (this.lock) {
+                    if (!this.closed && this.count <= this.filling.length / 2) {
+                        this.lock.wait(WRITE_DELAY);
+                    }
+                    byte[] swap = this.draining;
+                    this.draining = this.filling;
+                    this.filling = swap;
+                    length = this.count;
+                    this.count = 0;
+                    last = this.closed;
+                }
+                if (length > 0) {
+                    this.out.write(this.draining, 0, length);
+                    this.out.flush();
+                }
+                if (last) {
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            synchronized (this.lock) {
+                this.failure = ex;
+                this.closed = true;
+            }
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * @return An element of a StringArray or of an array of strings
+     */
+    private static String string(Object value, int i) {
+        if (value instanceof StringArray) {
+            return ((StringArray) value).get(i);
+        }
+        return (String) ((Object[]) value)[i];
+    }
+
+    /**
+     * @return An element of a NumberArray or of an array of numbers
+     */
+    private static double number(Object value, int i) {
+        if (value instanceof NumberArray) {
+            return ((NumberArray) value).get(i);
+        }
+        return ((Double) ((Object[]) value)[i]).doubleValue();
+    }
+
+    // Encoders into the buffer being filled, as DataOutputStream would write.
+    // Must be called with the lock held.
+    private void writeShort(int v) {
+        this.filling[this.count++] = (byte) (v >>> 8);
+        this.filling[this.count++] = (byte) v;
+    }
+
+    private void writeInt(int v) {
+        this.writeShort(v >>> 16);
+        this.writeShort(v);
+    }
+
+    private void writeLong(long v) {
+        this.writeInt((int) (v >>> 32));
+        this.writeInt((int) v);
+    }
+
+    private void writeUTF(String s) {
+        int at = this.count;
+        this.count += 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                this.filling[this.count++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                this.filling[this.count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                this.filling[this.count++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                this.filling[this.count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                this.filling[this.count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                this.filling[this.count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        int length = this.count - at - 2;
+        this.filling[at] = (byte) (length >>> 8);
+        this.filling[at + 1] = (byte) length;
+    }
+
+    /**
+     * Put every value in a log into a table, at the pace they were recorded
+     *
+     * @param in The log
+     * @param table The table to put the values in
+     * @param speed The replay speed, as a multiple of the recorded pace, or 0
+     * to replay without waiting
+     * @return The number of values replayed
+     * @throws IOException Thrown if the log cannot be read or is not a
+     * recording
+     */
+    static long replay(InputStream in, ITable table, double speed) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a DotNetTables recording");
+        }
+        byte version = data.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported recording version: " + version);
+        }
+        data.readLong();
+
+        Vector names = new Vector();
+        long begin = System.currentTimeMillis();
+        long count = 0;
+        while (true) {
+            int kind;
+            try {
+                kind = data.readByte();
+            } catch (EOFException ex) {
+                // A log that ends mid-record was cut short; replay what we can
+                break;
+            }
+            try {
+                if (kind == NAME) {
+                    int id = data.readUnsignedShort();
+                    names.setSize(Math.max(names.size(), id + 1));
+                    names.setElementAt(data.readUTF(), id);
+                    continue;
+                }
+                long time = data.readInt();
+                String name = (String) names.elementAt(data.readUnsignedShort());
+                int size = data.readUnsignedByte();
+                Object value;
+                if ((kind & ~RECEIVED) == STRINGS) {
+                    StringArray strings = new StringArray();
+                    for (int i = 0; i < size; i++) {
+                        strings.add(data.readUTF());
+                    }
+                    value = strings;
+                } else if ((kind & ~RECEIVED) == NUMBERS) {
+                    NumberArray numbers = new NumberArray();
+                    for (int i = 0; i < size; i++) {
+                        numbers.add(data.readDouble());
+                    }
+                    value = numbers;
+                } else {
+                    throw new IOException("Invalid record: " + kind);
+                }
+
+                if (speed > 0) {
+                    long delay = begin + (long) (time / speed) - System.currentTimeMillis();
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                }
+                table.putValue(name, value);
+                count++;
+            } catch (EOFException ex) {
+                break;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,160 @@
+package org.ingrahamrobotics.dotnettables;
+
+import edu.wpi.first.wpilibj.networktables2.AbstractNetworkTableEntryStore;
+import edu.wpi.first.wpilibj.networktables2.NetworkTableEntry;
+import edu.wpi.first.wpilibj.networktables2.NetworkTableNode;
+import edu.wpi.first.wpilibj.networktables2.type.NetworkTableEntryType;
+import edu.wpi.first.wpilibj.tables.ITable;
+import edu.wpi.first.wpilibj.tables.ITableListener;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Mirrors the DotNet table between two NetworkTables nodes: a client of an
+ * upstream server, and a server for any number of downstream clients. The
+ * upstream server sees a single client however many connect downstream, and
+ * new downstream clients are synchronized from the relay rather than from
+ * upstream.
+ *
+ * Each entry is relayed in the direction it was first seen: entries from
+ * upstream are copied downstream, and entries first put downstream, by a
+ * downstream client or by this process, are copied upstream. Copies of an
+ * entry arriving back at the node it came from are ignored, so nothing is
+ * echoed.
+ *
+ * Node listeners run with their node's entry store locked, so they only
+ * queue the changed entry's name. A relay thread copies each queued entry's
+ * latest value, locking one entry store at a time, so the two nodes never
+ * wait on each other and repeated updates to a queued entry are copied once.
+ *
+ * @author FRC Team 4030
+ */
+class Relay implements Runnable {
+
+    private final NetworkTableNode upstream;
+    private final NetworkTableNode downstream;
+    private final String path;
+    /**
+     * Boolean.TRUE for each entry first seen upstream, and Boolean.FALSE for
+     * each entry first seen downstream. Entries are claimed with the table
+     * locked, so an entry appearing on both sides at once has one origin.
+     */
+    private final Hashtable origins = new Hashtable();
+    private final Object lock = new Object();
+    private Vector queue = new Vector();
+    private Vector copying = new Vector();
+    private final Hashtable queued = new Hashtable();
+
+    /**
+     * @param upstream The client of the upstream server
+     * @param downstream The server for downstream clients
+     * @param path The full name of the table to relay, including the
+     * trailing separator
+     */
+    Relay(NetworkTableNode upstream, NetworkTableNode downstream, String path) {
+        this.upstream = upstream;
+        this.downstream = downstream;
+        this.path = path;
+    }
+
+    /**
+     * Start relaying. Entries already present downstream, such as those of
+     * tables published in this process, are relayed upstream.
+     */
+    void start() {
+        this.upstream.addTableListener(new Listener(true), true);
+        this.downstream.addTableListener(new Listener(false), true);
+        new Thread(this, "DotNetTables Relay Thread").start();
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this.lock) {
+                while (this.queue.isEmpty()) {
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException ex) {
+                    }
+                }
+                Vector swap = this.copying;
+                this.copying = this.queue;
+                this.queue = swap;
+                this.queued.clear();
+            }
+
+            for (int i = 0; i < this.copying.size(); i++) {
+                String name = (String) this.copying.elementAt(i);
+                try {
+                    if (this.origins.get(name) == Boolean.TRUE) {
+                        copy(name, this.upstream, this.downstream);
+                    } else {
+                        copy(name, this.downstream, this.upstream);
+                    }
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            this.copying.removeAllElements();
+        }
+    }
+
+    /**
+     * Copy an entry's current value from one node to another
+     */
+    private static void copy(String name, NetworkTableNode from, NetworkTableNode to) {
+        NetworkTableEntryType type;
+        Object value;
+        AbstractNetworkTableEntryStore store = from.getEntryStore();
+        synchronized (store) {
+            NetworkTableEntry entry = store.getEntry(name);
+            if (entry == null) {
+                return;
+            }
+            type = entry.getType();
+            value = entry.getValue();
+
+            // Arrays are held as Object[] and updated in place
+            if (value instanceof Object[]) {
+                Object[] array = (Object[]) value;
+                Object[] copy = new Object[array.length];
+                System.arraycopy(array, 0, copy, 0, array.length);
+                value = copy;
+            }
+        }
+        to.getEntryStore().putOutgoing(name, type, value);
+    }
+
+    /**
+     * Queues changed entries in the DotNet table of one node
+     */
+    private class Listener implements ITableListener {
+
+        private final Boolean side;
+
+        Listener(boolean upstream) {
+            this.side = upstream ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        public void valueChanged(ITable itable, String key, Object val, boolean isNew) {
+            if (!key.startsWith(path)) {
+                return;
+            }
+            synchronized (origins) {
+                Object origin = origins.get(key);
+                if (origin == null) {
+                    origins.put(key, this.side);
+                } else if (origin != this.side) {
+                    // Our own copy, or an update to an entry owned by the
+                    // other side
+                    return;
+                }
+            }
+            synchronized (lock) {
+                if (queued.put(key, key) == null) {
+                    queue.addElement(key);
+                    lock.notify();
+                }
+            }
+        }
+    }
+}